@@ -12,19 +12,33 @@ package sh.drt.supergenkiutil.furiganaview;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.os.SystemClock;
 import android.text.TextPaint;
 import android.util.AttributeSet;
 import android.view.View;
-import java.util.Vector;
+import android.view.ViewTreeObserver;
+import java.io.IOException;
+import java.util.Arrays;
 
 public class FuriganaView extends View {
 
+  // Constants
+  private static final String ELLIPSIS = "\u2026";
+  private static final float DEFAULT_AUTO_FIT_MIN_SP = 12.0f;
+
   // Attributes
   private int baseColor;
   private int highlightColor;
   private int furiganaColor;
   private float baseTextSize;
+  private int maxLines;
+  private boolean ellipsize;
+  private float autoFitMinTextSize;
+  private float autoFitMaxTextSize;
+  private float autoFitStepGranularity;
+  private LineBreakRules lineBreakRules;
 
   // Paints
   private TextPaint furiganaPaint;
@@ -35,12 +49,77 @@ public class FuriganaView extends View {
   private float lineSize = 0.0f;
   private float normalHeight = 0.0f;
   private float furiganaHeight = 0.0f;
-  private float lineMax = 0.0f;
 
-  // Spans and lines
-  private Vector<Span> spanVector = new Vector<>();
-  private Vector<LineNormal> lineNormalVector = new Vector<>();
-  private Vector<LineFurigana> lineFuriganaVector = new Vector<>();
+  // Markup, parsed and measured on first use
+  private String text = "";
+  private boolean textDirty = false;
+  private boolean sizeDirty = false;
+  private boolean linesDirty = false;
+  private float layoutWidth = -1.0f;
+  private boolean layoutMeasured = false;
+
+  // Last auto fit
+  private boolean autoFitDirty = true;
+  private int autoFitWidth = -1;
+  private int autoFitHeight = -1;
+
+  // New text of a measured view, its size is checked once before the next draw
+  private boolean textPending = false;
+  private final ViewTreeObserver.OnPreDrawListener preDrawListener =
+      new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+          return checkPendingText();
+        }
+      };
+
+  // Last measure pass
+  private int lastWidthMeasureSpec = 0;
+  private int lastHeightMeasureSpec = 0;
+  private int measuredWidthValue = 0;
+  private int measuredHeightValue = 0;
+
+  // Spans, runs and lines of the parsed markup
+  private TextLayout<TextPaint> layout;
+
+  // Persistent layout cache of line ends, and the key under which reading offsets are stored
+  // once every line has been placed by drawing
+  private LayoutCache layoutCache = null;
+  private LayoutCache.Entry layoutEntry = new LayoutCache.Entry();
+  private long layoutKey = 0;
+  private boolean readingsPending = false;
+
+  // Search index, built on the first search after the text changes
+  private ReadingIndex readingIndex = null;
+  private boolean readingIndexDirty = true;
+
+  // Visible area when drawing
+  private Rect clipRect = new Rect();
+
+  // Highlight
+  private int startHighlight = 0;
+  private int endHighlight = 0;
+
+  // Highlight timeline
+  private int[] timelineOffsets = null;
+  private long[] timelineTimes = null;
+  private long timelineBase = 0;
+  private boolean timelineRunning = false;
+  private final Runnable timelineFrame = new Runnable() {
+    @Override
+    public void run() {
+      if (!timelineRunning) {
+        return;
+      }
+      long time = SystemClock.uptimeMillis() - timelineBase;
+      setHighlightTime(time);
+      if (time < timelineTimes[timelineTimes.length - 1]) {
+        postOnAnimation(this);
+      } else {
+        timelineRunning = false;
+      }
+    }
+  };
 
   // Constructors
   public FuriganaView(Context context, AttributeSet attrs) {
@@ -58,6 +137,19 @@ public class FuriganaView extends View {
     furiganaColor = ta.getColor(R.styleable.FuriganaView_furiganaColor,
         getResources().getColor(R.color.defaultFuriganaColor));
     baseTextSize = ta.getDimensionPixelSize(R.styleable.FuriganaView_baseTextSize, 36);
+    maxLines = lineLimit(ta.getInt(R.styleable.FuriganaView_maxLines, Integer.MAX_VALUE));
+    ellipsize = ta.getBoolean(R.styleable.FuriganaView_ellipsize, false);
+    autoFitMaxTextSize = ta.getDimension(R.styleable.FuriganaView_autoFitMaxTextSize, 0.0f);
+    autoFitMinTextSize = ta.getDimension(R.styleable.FuriganaView_autoFitMinTextSize, -1.0f);
+    if (autoFitMinTextSize < 0.0f) {
+      autoFitMinTextSize = Math.min(autoFitMaxTextSize,
+          DEFAULT_AUTO_FIT_MIN_SP * getResources().getDisplayMetrics().scaledDensity);
+    }
+    autoFitStepGranularity = ta
+        .getDimension(R.styleable.FuriganaView_autoFitStepGranularity, 1.0f);
+    checkAutoFitTextSize(autoFitMinTextSize, autoFitMaxTextSize, autoFitStepGranularity);
+    lineBreakRules = ta.getBoolean(R.styleable.FuriganaView_kinsoku, true)
+        ? LineBreakRules.JAPANESE : LineBreakRules.NONE;
 
     // main text
     normalTextPaint = new TextPaint();
@@ -77,6 +169,10 @@ public class FuriganaView extends View {
     furiganaPaint.setColor(furiganaColor);
     furiganaPaint.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.NORMAL));
     furiganaPaint.setTextSize(normalTextPaint.getTextSize() / 2.0f);
+
+    // layout, highlight ranges are styled with paints
+    layout = new TextLayout<>(new PaintMeasurer(normalTextPaint),
+        new PaintMeasurer(furiganaPaint));
   }
 
   // Getters and Setters for Attributes
@@ -113,130 +209,252 @@ public class FuriganaView extends View {
 
   public void setBaseTextSize(float baseTextSize) {
     this.baseTextSize = baseTextSize;
-    this.normalTextPaint.setTextSize(baseTextSize);
-    this.highlightTextPaint.setTextSize(baseTextSize);
-    this.furiganaPaint.setTextSize(baseTextSize / 2.0f);
+    applyTextSize(baseTextSize);
+
+    // Measure again on next layout
+    this.autoFitDirty = true;
+    this.invalidate();
+    this.requestLayout();
   }
 
-  private void calculateText(float lineMaxValue) {
-    // Clear lines
-    lineNormalVector.clear();
-    lineFuriganaVector.clear();
+  // Size of the paints, either the base text size or the auto fitted one
+  private void applyTextSize(float textSize) {
+    this.normalTextPaint.setTextSize(textSize);
+    this.highlightTextPaint.setTextSize(textSize);
+    this.furiganaPaint.setTextSize(textSize / 2.0f);
+    for (int i = 0; i < layout.highlights.size(); i++) {
+      layout.highlights.get(i).value.setTextSize(textSize);
+    }
+    this.sizeDirty = true;
+  }
 
-    // Sizes
-    this.lineMax = 0.0f;
+  public float getAutoFitMinTextSize() {
+    return autoFitMinTextSize;
+  }
 
-    // Check if no limits on width
-    if (lineMaxValue < 0.0) {
+  public float getAutoFitMaxTextSize() {
+    return autoFitMaxTextSize;
+  }
 
-      // Create single normal and furigana line
-      LineNormal lineNormal = new LineNormal();
-      LineFurigana lineFurigana = new LineFurigana();
+  public float getAutoFitStepGranularity() {
+    return autoFitStepGranularity;
+  }
 
-      // Loop spans
-      for (Span span : spanVector) {
-        // Text
-        lineNormal.add(span.normal());
-        lineFurigana.add(span.furigana(this.lineMax));
+  // Largest size in min + k * step <= max at which all text fits the view, 0 max to disable
+  public void setAutoFitTextSize(float minTextSize, float maxTextSize, float stepGranularity) {
+    checkAutoFitTextSize(minTextSize, maxTextSize, stepGranularity);
+    this.autoFitMinTextSize = minTextSize;
+    this.autoFitMaxTextSize = maxTextSize;
+    this.autoFitStepGranularity = stepGranularity;
+    if (maxTextSize <= 0.0f) {
+      applyTextSize(baseTextSize);
+    }
+    this.autoFitDirty = true;
+    this.invalidate();
+    this.requestLayout();
+  }
 
-        // Widths update
-        for (float width : span.widths()) {
-          this.lineMax += width;
-        }
-      }
+  private static void checkAutoFitTextSize(float minTextSize, float maxTextSize,
+      float stepGranularity) {
+    if (maxTextSize > 0.0f && (minTextSize <= 0.0f || minTextSize > maxTextSize
+        || stepGranularity <= 0.0f)) {
+      throw new IllegalArgumentException("invalid auto fit range " + minTextSize + ".."
+          + maxTextSize + " step " + stepGranularity);
+    }
+  }
 
-      // Commit both lines
-      lineNormalVector.add(lineNormal);
-      lineFuriganaVector.add(lineFurigana);
+  // Line limit, values of 0 or less for none
+  private static int lineLimit(int maxLines) {
+    return maxLines > 0 ? maxLines : Integer.MAX_VALUE;
+  }
 
-    } else {
+  public int getMaxLines() {
+    return maxLines;
+  }
 
-      // Lines
-      float lineX = 0.0f;
-      LineNormal lineNormal = new LineNormal();
-      LineFurigana lineFurigana = new LineFurigana();
+  public void setMaxLines(int maxLines) {
+    this.maxLines = lineLimit(maxLines);
+    this.linesDirty = true;
+    this.autoFitDirty = true;
+    this.invalidate();
+    this.requestLayout();
+  }
+
+  public boolean getEllipsize() {
+    return ellipsize;
+  }
+
+  public void setEllipsize(boolean ellipsize) {
+    this.ellipsize = ellipsize;
+    this.linesDirty = true;
+    this.autoFitDirty = true;
+    this.invalidate();
+    this.requestLayout();
+  }
+
+  public long getPlacementBudgetNanos() {
+    return layout.placementBudgetNanos;
+  }
+
+  // Time per frame for furigana placement; lines past it are drawn with a quick
+  // approximation and finished on later frames
+  public void setPlacementBudgetNanos(long placementBudgetNanos) {
+    layout.placementBudgetNanos = Math.max(0, placementBudgetNanos);
+  }
+
+  // Lines drawn with an approximate placement since the last reset
+  public int getPlacementFallbackCount() {
+    return layout.placementFallbackCount;
+  }
+
+  public void resetPlacementFallbackCount() {
+    layout.placementFallbackCount = 0;
+  }
+
+  public LineBreakRules getLineBreakRules() {
+    return lineBreakRules;
+  }
+
+  // Characters that may not start or end a line, null for none
+  public void setLineBreakRules(LineBreakRules lineBreakRules) {
+    this.lineBreakRules = lineBreakRules != null ? lineBreakRules : LineBreakRules.NONE;
+    this.linesDirty = true;
+    this.autoFitDirty = true;
+    this.invalidate();
+    this.requestLayout();
+  }
+
+  public LayoutCache getLayoutCache() {
+    return layoutCache;
+  }
 
-      // Initial span
-      int spanI = 0;
+  public void setLayoutCache(LayoutCache layoutCache) {
+    this.layoutCache = layoutCache;
+  }
 
-      Span span = null;
-      if (spanVector.size() != 0) {
-        span = spanVector.get(spanI);
+  private void calculateText(float lineMaxValue) {
+    // Recycle lines
+    layout.releaseLines();
+    linesDirty = false;
+    readingsPending = false;
+
+    // Cached layout
+    long key = 0;
+    if (layoutCache != null) {
+      key = layoutKey(lineMaxValue);
+      if (layoutCache.get(key, layoutEntry) && applyLayout(layoutEntry)) {
+        layoutKey = key;
+        readingsPending = layoutEntry.readingCount < 0;
+        return;
       }
+      layout.releaseLines();
+    }
 
-      // Iterate
-      while (span != null) {
-        // Start offset
-        float lineS = lineX;
-
-        // Calculate possible line size
-        Vector<Float> widths = span.widths();
-        int i = 0;
-        for (i = 0; i < widths.size(); i++) {
-          if (lineX + widths.get(i) <= lineMaxValue) {
-            lineX += widths.get(i);
-          } else {
-            break;
-          }
-        }
+    // Break and build lines
+    float ellipsisWidth = ellipsize ? normalTextPaint.measureText(ELLIPSIS) : 0.0f;
+    LineBreaker lineBreaker = findLineBreaks(lineMaxValue, ellipsisWidth);
+    layout.lineMax = lineBreaker.lineMax;
+    layout.ellipsisX = lineBreaker.ellipsisX;
+    layout.buildLines(lineBreaker.breaks, lineBreaker.lineCount());
+
+    // Store line ends, readings follow once drawing has placed them all
+    if (layoutCache != null) {
+      layoutKey = key;
+      readingsPending = true;
+      storeLayout();
+    }
+  }
 
-        // Add span to line
-        if (i >= 0 && i < widths.size()) {
-
-          // Span does not fit entirely
-          if (i > 0) {
-            // Split half that fits
-            Vector<TextNormal> textNormalVectorOne = new Vector<>();
-            Vector<TextNormal> textNormalVectorTwo = new Vector<>();
-            span.split(i, textNormalVectorOne, textNormalVectorTwo);
-            lineNormal.add(textNormalVectorOne);
-            span = new Span(textNormalVectorTwo);
-          }
-
-          // Add new line with current spans
-          if (lineNormal.size() != 0) {
-            // Add
-            this.lineMax = (this.lineMax > lineX ? this.lineMax : lineX);
-            lineNormalVector.add(lineNormal);
-            lineFuriganaVector.add(lineFurigana);
-
-            // Reset
-            lineNormal = new LineNormal();
-            lineFurigana = new LineFurigana();
-            lineX = 0.0f;
-
-            // Next span
-            continue;
-          }
-
-        } else {
-
-          // Span fits entirely
-          lineNormal.add(span.normal());
-          lineFurigana.add(span.furigana(lineS));
+  // Break lines with the current options
+  private LineBreaker findLineBreaks(float lineMaxValue, float ellipsisWidth) {
+    LineBreaker lineBreaker = layout.lineBreaker;
+    lineBreaker.maxLines = maxLines;
+    lineBreaker.ellipsize = ellipsize;
+    lineBreaker.rules = lineBreakRules;
+    lineBreaker.breakLines(lineMaxValue, ellipsisWidth);
+    return lineBreaker;
+  }
 
-        }
+  // Cache key of the current text laid out at the given width
+  private long layoutKey(float lineMaxValue) {
+    long h = LayoutCache.hash(LayoutCache.FNV_OFFSET, text);
+    h = LayoutCache.hash(h, lineMaxValue);
+    h = LayoutCache.hash(h, normalTextPaint.getTextSize());
+    h = LayoutCache.hash(h, furiganaPaint.getTextSize());
+    h = LayoutCache.hash(h, typefaceStyle(normalTextPaint.getTypeface()));
+    h = LayoutCache.hash(h, typefaceStyle(furiganaPaint.getTypeface()));
+    h = LayoutCache.hash(h, getResources().getConfiguration().fontScale);
+    h = LayoutCache.hash(h, maxLines);
+    h = LayoutCache.hash(h, lineBreakRules.fingerprint());
+    return LayoutCache.hash(h, ellipsize ? 1 : 0);
+  }
 
-        // Next span
-        span = null;
-        spanI++;
-        if (spanI < spanVector.size()) {
-          span = spanVector.get(spanI);
-        }
+  private static int typefaceStyle(Typeface typeface) {
+    return typeface == null ? -1 : typeface.getStyle();
+  }
+
+  // Rebuild lines from cached line ends, and reading offsets when stored
+  private boolean applyLayout(LayoutCache.Entry entry) {
+    // Lines
+    if (!layout.buildLines(entry.lineBreaks, entry.lineCount)) {
+      return false;
+    }
+
+    // Sizes
+    layout.lineMax = entry.lineMax;
+    layout.ellipsisX = entry.ellipsisX;
+
+    // Readings
+    if (entry.readingCount < 0) {
+      return true;
+    }
+    int reading = 0;
+    for (int i = 0; i < layout.lineCount(); i++) {
+      TextLayout<TextPaint>.LineFurigana line = layout.lineFurigana(i);
+      if (reading + line.size() > entry.readingCount) {
+        return false;
       }
+      line.setOffsets(entry.readingOffsets, reading);
+      reading += line.size();
+    }
+    return reading == entry.readingCount;
+  }
+
+  // Store line ends of the lines just broken
+  private void storeLayout() {
+    LineBreaker lineBreaker = layout.lineBreaker;
+    LayoutCache.Entry entry = layoutEntry;
+    entry.ensureCapacity(layout.lineCount(), 0);
+    entry.lineCount = layout.lineCount();
+    entry.lineMax = layout.lineMax;
+    entry.ellipsisX = layout.ellipsisX;
+    System.arraycopy(lineBreaker.breaks, 0, entry.lineBreaks, 0, 2 * lineBreaker.breakCount);
+    entry.readingCount = -1;
+    storeReadings();
+  }
 
-      // Last span
-      if (lineNormal.size() != 0) {
-        // Add
-        this.lineMax = (this.lineMax > lineX ? this.lineMax : lineX);
-        lineNormalVector.add(lineNormal);
-        lineFuriganaVector.add(lineFurigana);
+  // Store reading offsets with the line ends in the entry once every line is placed
+  private void storeReadings() {
+    LayoutCache.Entry entry = layoutEntry;
+    if (layout.placed()) {
+      int readings = 0;
+      for (int i = 0; i < layout.lineCount(); i++) {
+        readings += layout.lineFurigana(i).size();
+      }
+      entry.ensureCapacity(entry.lineCount, readings);
+      entry.readingCount = 0;
+      for (int i = 0; i < layout.lineCount(); i++) {
+        entry.readingCount = layout.lineFurigana(i).getOffsets(entry.readingOffsets,
+            entry.readingCount);
       }
+      readingsPending = false;
     }
 
-    // Calculate furigana
-    for (LineFurigana line : lineFuriganaVector) {
-      line.calculate();
+    // Store, the cache is optional so failures only cost the entry
+    try {
+      layoutCache.put(layoutKey, entry);
+    } catch (IOException e) {
+      // Ignore
     }
   }
 
@@ -244,34 +462,125 @@ public class FuriganaView extends View {
   protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
     // Modes
     int wmode = MeasureSpec.getMode(widthMeasureSpec);
-    int hmode = MeasureSpec.getMode(heightMeasureSpec);
 
     // Dimensions
     int wold = MeasureSpec.getSize(widthMeasureSpec);
-    int hold = MeasureSpec.getSize(heightMeasureSpec);
+
+    // Parse and measure latest text
+    textPending = false;
+    ensureText();
+    autoFit(widthMeasureSpec, heightMeasureSpec);
 
     // Draw mode
+    float lineMaxValue;
     if (wmode == MeasureSpec.EXACTLY || wmode == MeasureSpec.AT_MOST && wold > 0) {
       // Width limited
-      calculateText(wold);
+      lineMaxValue = wold;
     } else {
       // Width unlimited
-      calculateText(-1.0f);
+      lineMaxValue = -1.0f;
+    }
+
+    // Lines are kept if text and width did not change
+    if (linesDirty || !layoutMeasured || lineMaxValue != layoutWidth) {
+      layoutWidth = lineMaxValue;
+      calculateText(layoutWidth);
+    }
+    layoutMeasured = true;
+    lastWidthMeasureSpec = widthMeasureSpec;
+    lastHeightMeasureSpec = heightMeasureSpec;
+
+    // Set result
+    calculateSize(widthMeasureSpec, heightMeasureSpec);
+    setMeasuredDimension(measuredWidthValue, measuredHeightValue);
+
+  }
+
+  // Pick the largest auto fit size at which all text fits the limited width and height
+  private void autoFit(int widthMeasureSpec, int heightMeasureSpec) {
+    // Both dimensions must be limited
+    int width = MeasureSpec.getSize(widthMeasureSpec);
+    int height = MeasureSpec.getSize(heightMeasureSpec);
+    if (autoFitMaxTextSize <= 0.0f
+        || MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED
+        || MeasureSpec.getMode(heightMeasureSpec) == MeasureSpec.UNSPECIFIED
+        || width <= 0 || height <= 0) {
+      return;
+    }
+
+    // Only when text, options or bounds changed
+    if (!autoFitDirty && !linesDirty && width == autoFitWidth && height == autoFitHeight) {
+      return;
+    }
+    autoFitDirty = false;
+    autoFitWidth = width;
+    autoFitHeight = height;
+
+    // Candidates are min + k * step, each tried on the current widths scaled to its size
+    float current = normalTextPaint.getTextSize();
+    float ellipsisWidth = ellipsize ? normalTextPaint.measureText(ELLIPSIS) : 0.0f;
+    int lo = 0;
+    int hi = (int) ((autoFitMaxTextSize - autoFitMinTextSize) / autoFitStepGranularity);
+    int best = 0;
+    while (lo <= hi) {
+      int k = (lo + hi) >>> 1;
+      float scale = (autoFitMinTextSize + k * autoFitStepGranularity) / current;
+      if (autoFitFits(width / scale, height / scale, ellipsisWidth)) {
+        best = k;
+        lo = k + 1;
+      } else {
+        hi = k - 1;
+      }
     }
 
+    // One exact measure at the chosen size
+    float size = autoFitMinTextSize + best * autoFitStepGranularity;
+    if (size == current) {
+      return;
+    }
+    applyTextSize(size);
+    ensureText();
+
+    // Advances do not scale exactly with the size, e.g. without subpixel text or with fake
+    // bold, so step down while the exact widths still do not fit
+    while (best > 0 && !autoFitFits(width, height,
+        ellipsize ? normalTextPaint.measureText(ELLIPSIS) : 0.0f)) {
+      best--;
+      applyTextSize(autoFitMinTextSize + best * autoFitStepGranularity);
+      ensureText();
+    }
+  }
+
+  // Whether all text fits in the bounds at the current size
+  private boolean autoFitFits(float width, float height, float ellipsisWidth) {
+    LineBreaker lineBreaker = findLineBreaks(width, ellipsisWidth);
+    return lineBreaker.complete() && lineSize * lineBreaker.lineCount() <= height
+        && lineBreaker.lineMax <= width;
+  }
+
+  // Measured size of the current lines
+  private void calculateSize(int widthMeasureSpec, int heightMeasureSpec) {
+    // Modes
+    int wmode = MeasureSpec.getMode(widthMeasureSpec);
+    int hmode = MeasureSpec.getMode(heightMeasureSpec);
+
+    // Dimensions
+    int wold = MeasureSpec.getSize(widthMeasureSpec);
+    int hold = MeasureSpec.getSize(heightMeasureSpec);
+
     // New height
-    int hnew = (int) Math.round(Math.ceil(lineSize * (float) lineNormalVector.size()));
+    int hnew = (int) Math.round(Math.ceil(lineSize * (float) layout.lineCount()));
     int wnew = wold;
-    if (wmode != MeasureSpec.EXACTLY && lineNormalVector.size() <= 1) {
-      wnew = (int) Math.round(Math.ceil(this.lineMax));
+    if (wmode != MeasureSpec.EXACTLY && layout.lineCount() <= 1) {
+      wnew = (int) Math.round(Math.ceil(layout.lineMax));
     }
     if (hmode != MeasureSpec.UNSPECIFIED && hnew > hold) {
       hnew |= MEASURED_STATE_TOO_SMALL;
     }
 
-    // Set result
-    setMeasuredDimension(wnew, hnew);
-
+    // Result
+    measuredWidthValue = wnew;
+    measuredHeightValue = hnew;
   }
 
   @Override
@@ -285,19 +594,48 @@ public class FuriganaView extends View {
         canvas.drawRect(rect, paint);
         */
 
-    // Check
-    assert (lineNormalVector.size() == lineFuriganaVector.size());
+    // Lines
+    ensureLines();
 
-    // Coordinates
-    float y = lineSize;
+    // Visible lines, the rest are clipped by a scroll container
+    int lineCount = layout.lineCount();
+    int first = 0;
+    int last = lineCount;
+    if (lineSize > 0.0f) {
+      if (!canvas.getClipBounds(clipRect)) {
+        return;
+      }
+      first = Math.max(0, (int) Math.floor(clipRect.top / lineSize) - 1);
+      last = Math.min(lineCount, (int) Math.ceil(clipRect.bottom / lineSize) + 1);
+    }
 
-    // Loop lines
-    for (int i = 0; i < lineNormalVector.size(); i++) {
-      lineNormalVector.get(i).draw(canvas, y);
-      lineFuriganaVector.get(i).draw(canvas, y - normalHeight);
+    // Loop lines, furigana placement shares the frame budget
+    boolean limited = layout.placementBudgetNanos > 0;
+    layout.startFrame();
+    boolean placed = true;
+    float y = lineSize * (first + 1);
+    for (int i = first; i < last; i++) {
+      drawLineNormal(canvas, layout.lineNormal(i), y);
+      placed &= drawLineFurigana(canvas, layout.lineFurigana(i), y - normalHeight, limited);
       y += lineSize;
     }
 
+    // Finish placement on the next frame
+    if (!placed) {
+      postInvalidateOnAnimation();
+    }
+
+    // Store readings once every line has been drawn and placed
+    if (readingsPending && !linesDirty && layoutCache != null && layout.placed()) {
+      storeReadings();
+    }
+
+    // Ellipsis after last line
+    if (layout.ellipsisX >= 0.0f && last == lineCount) {
+      canvas.drawText(ELLIPSIS, 0, ELLIPSIS.length(), layout.ellipsisX,
+          y - lineSize - normalTextPaint.descent(), normalTextPaint);
+    }
+
   }
 
   // public functions
@@ -309,409 +647,424 @@ public class FuriganaView extends View {
     this.internalSetText(text, startHighlight, endHighlight);
   }
 
-  private void internalSetText(String text, int startHighlight, int endHighlight) {
-
-    // Linesize
-    normalHeight = normalTextPaint.descent() - normalTextPaint.ascent();
-    furiganaHeight = furiganaPaint.descent() - furiganaPaint.ascent();
-    lineSize = normalHeight + furiganaHeight;
-
-    // Clear spans
-    spanVector.clear();
-
-    // Sizes
-    lineSize = furiganaPaint.getFontSpacing() + Math
-        .max(normalTextPaint.getFontSpacing(), highlightTextPaint.getFontSpacing());
-
-    // Spannify text
-    while (text.length() > 0) {
-      int idx = text.indexOf('{');
-      if (idx >= 0) {
-        // Prefix string
-        if (idx > 0) {
-          // Spans
-          spanVector.add(new Span("", text.substring(0, idx), startHighlight, endHighlight));
-
-          // Remove text
-          text = text.substring(idx);
-          startHighlight -= idx;
-          endHighlight -= idx;
-        }
-
-        // End bracket
-        idx = text.indexOf('}');
-        if (idx < 1) {
-          // Error
-          text = "";
-          break;
-        } else if (idx == 1) {
-          // Empty bracket
-          text = text.substring(2);
-          continue;
-        }
-
-        // Spans
-        String[] split = text.substring(1, idx).split(";");
-        spanVector.add(
-            new Span(((split.length > 1) ? split[1] : ""), split[0], startHighlight, endHighlight));
-
-        // Remove text
-        text = text.substring(idx + 1);
-        startHighlight -= split[0].length();
-        endHighlight -= split[0].length();
-
-      } else {
-        // Single span
-        spanVector.add(new Span("", text, startHighlight, endHighlight));
-        text = "";
-      }
+  // Highlight without re-parsing or re-layout; highlight paint must match base paint size
+  public void setHighlight(int startHighlight, int endHighlight) {
+    // Empty ranges are all the same
+    if (startHighlight >= endHighlight) {
+      startHighlight = 0;
+      endHighlight = 0;
+    }
+    if (startHighlight == this.startHighlight && endHighlight == this.endHighlight) {
+      return;
     }
 
-    // Invalidate view
-    this.invalidate();
-    this.requestLayout();
+    // Changed characters
+    int oldStart = this.startHighlight;
+    int oldEnd = this.endHighlight;
+    this.startHighlight = startHighlight;
+    this.endHighlight = endHighlight;
+
+    // Invalidate dirty lines
+    if (oldStart >= oldEnd) {
+      invalidateRange(startHighlight, endHighlight);
+    } else if (startHighlight >= endHighlight) {
+      invalidateRange(oldStart, oldEnd);
+    } else {
+      invalidateRange(Math.min(oldStart, startHighlight), Math.max(oldStart, startHighlight));
+      invalidateRange(Math.min(oldEnd, endHighlight), Math.max(oldEnd, endHighlight));
+    }
   }
-  // private classes
-  class TextFurigana {
 
-    // Info
-    private String text;
-
-    // Coordinates
-    float offset;
-    float width;
+  public int getStartHighlight() {
+    return startHighlight;
+  }
 
-    // Constructor
-    TextFurigana(String text) {
-      // Info
-      this.text = text;
+  public int getEndHighlight() {
+    return endHighlight;
+  }
 
-      // Coordinates
-      this.width = furiganaPaint.measureText(text);
+  // Timeline of (character offset, timestamp) pairs with strictly ascending timestamps;
+  // highlight grows from 0 to the offset of the last entry whose timestamp has been reached
+  public void setHighlightTimeline(int[] offsets, long[] times) {
+    stopHighlightTimeline();
+    if (offsets == null || times == null || offsets.length == 0) {
+      timelineOffsets = null;
+      timelineTimes = null;
+      return;
     }
-
-    // Info
-    //private String text() { return this.text; }
-
-    // Coordinates
-    float getOffset() {
-      return this.offset;
+    if (offsets.length != times.length) {
+      throw new IllegalArgumentException("offsets and times differ in length");
     }
-
-    void setOffset(float value) {
-      this.offset = value;
+    // setHighlightTime binary searches the times
+    for (int i = 1; i < times.length; i++) {
+      if (times[i] <= times[i - 1]) {
+        throw new IllegalArgumentException("times not ascending at index " + i);
+      }
     }
+    timelineOffsets = offsets.clone();
+    timelineTimes = times.clone();
+  }
 
-    float width() {
-      return this.width;
+  // Move highlight to the given playback time, e.g. from an audio position callback
+  public void setHighlightTime(long time) {
+    if (timelineTimes == null) {
+      return;
     }
-
-    // Draw
-    void draw(Canvas canvas, float x, float y) {
-      x -= this.width / 2.0f;
-      if (x < 0) {
-        x = 0;
-      } else if (x + this.width > canvas.getWidth()) {
-        x = canvas.getWidth() - this.width;
-      }
-      canvas.drawText(this.text, 0, this.text.length(), x, y, furiganaPaint);
+    int idx = Arrays.binarySearch(timelineTimes, time);
+    if (idx < 0) {
+      idx = -idx - 2;
     }
+    setHighlight(0, idx < 0 ? 0 : timelineOffsets[idx]);
   }
 
-  class TextNormal {
-
-    // Info
-    private String textData;
-    private boolean isMarked;
-
-    // Widths
-    private float widthTotal;
-    private float[] charsWidth;
+  // Advance highlight on each animation frame starting at the given timeline time
+  public void startHighlightTimeline(long fromTime) {
+    if (timelineTimes == null) {
+      return;
+    }
+    removeCallbacks(timelineFrame);
+    timelineBase = SystemClock.uptimeMillis() - fromTime;
+    timelineRunning = true;
+    postOnAnimation(timelineFrame);
+  }
 
-    // Constructor
-    TextNormal(String text, boolean isMarked) {
-      // Info
-      textData = text;
-      this.isMarked = isMarked;
+  public void stopHighlightTimeline() {
+    timelineRunning = false;
+    removeCallbacks(timelineFrame);
+  }
 
-      // Character widths
-      charsWidth = new float[textData.length()];
-      if (isMarked) {
-        highlightTextPaint.getTextWidths(textData, charsWidth);
-      } else {
-        normalTextPaint.getTextWidths(textData, charsWidth);
-      }
+  // Additional highlight ranges, each drawn with its own color; later ranges win on overlap.
+  // Ranges refer to the current text and are dropped by setText.
+  public int addHighlight(int start, int end, int color) {
+    TextPaint paint = new TextPaint(normalTextPaint);
+    paint.setColor(color);
+    int id = layout.highlights.add(start, end, paint);
+    restyleRange(start, end);
+    return id;
+  }
 
-      // Total width
-      widthTotal = 0.0f;
-      for (float v : charsWidth) {
-        widthTotal += v;
-      }
+  public void removeHighlight(int id) {
+    HighlightIndex.Range<TextPaint> range = layout.highlights.remove(id);
+    if (range != null) {
+      restyleRange(range.start, range.end);
     }
+  }
 
-    // Info
-    int length() {
-      return textData.length();
+  public void clearHighlights() {
+    if (layout.highlights.size() == 0) {
+      return;
     }
+    int start = layout.highlights.start();
+    int end = layout.highlights.end();
+    layout.highlights.clear();
+    restyleRange(start, end);
+  }
 
-    // Widths
-    float[] getCharsWidth() {
-      return charsWidth;
-    }
+  private void restyleRange(int start, int end) {
+    layout.restyle(start, end);
+    invalidateRange(start, end);
+  }
 
-    // Split
-    TextNormal[] split(int offset) {
-      return new TextNormal[]{
-          new TextNormal(textData.substring(0, offset), isMarked),
-          new TextNormal(textData.substring(offset), isMarked)
-      };
+  // Map a point to the nearest character; returns whether the point lies on the text
+  public boolean hitTest(float x, float y, HitResult out) {
+    // Line from top
+    out.clear();
+    ensureLines();
+    if (layout.lineCount() == 0 || lineSize <= 0.0f) {
+      return false;
     }
-
-    // Draw
-    float draw(Canvas canvas, float x, float y) {
-      if (isMarked) {
-        canvas.drawText(textData, 0, textData.length(), x, y, highlightTextPaint);
+    int lineIdx = (int) Math.floor(y / lineSize);
+    boolean inside = lineIdx >= 0 && lineIdx < layout.lineCount();
+    lineIdx = Math.max(0, Math.min(layout.lineCount() - 1, lineIdx));
+
+    // Character from line prefix sums
+    TextLayout<TextPaint>.LineNormal line = layout.lineNormal(lineIdx);
+    if (line.start() >= line.end()) {
+      return false;
+    }
+    float[] prefix = line.prefix();
+    inside &= x >= 0.0f && x < line.width();
+    int lo = 0;
+    int hi = line.end() - line.start() - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (prefix[mid + 1] <= x) {
+        lo = mid + 1;
       } else {
-        canvas.drawText(textData, 0, textData.length(), x, y, normalTextPaint);
+        hi = mid;
       }
-      return widthTotal;
     }
+    int offset = line.start() + lo;
+
+    // Span
+    TextLayout<TextPaint>.Span span = layout.span(layout.firstSpan(offset));
+    TextLayout<TextPaint>.TextFurigana furigana = span.furigana();
+    out.set(offset, lineIdx, span.start(), span.end(), span.text(),
+        furigana == null ? null : furigana.text());
+    return inside;
   }
 
-  class LineFurigana {
-
-    // Text
-    private Vector<TextFurigana> textFuriganaVector = new Vector<>();
-    private Vector<Float> floatVectorOffset = new Vector<>();
-
-    // Add
-    void add(TextFurigana text) {
-      if (text != null) {
-        this.textFuriganaVector.add(text);
+  // Find query in base text or readings, katakana and hiragana alike; returns sorted start and
+  // end pairs of base text that can be passed to addHighlight
+  public int[] search(String query) {
+    // Index latest text
+    ensureText();
+    if (readingIndex == null) {
+      readingIndex = new ReadingIndex();
+    }
+    if (readingIndexDirty) {
+      readingIndexDirty = false;
+      Markup markup = layout.markup;
+      readingIndex.reset(markup.normalChars, markup.normalLength);
+      for (int i = 0; i < layout.spanCount(); i++) {
+        TextLayout<TextPaint>.Span span = layout.span(i);
+        TextLayout<TextPaint>.TextFurigana furigana = span.furigana();
+        readingIndex.addSpan(markup.normalChars, span.start(), span.end(), markup.furiganaChars,
+            furigana == null ? 0 : furigana.start(), furigana == null ? 0 : furigana.end());
       }
+      readingIndex.build();
     }
 
-    // Calculate
-    void calculate() {
-      // Check size
-      if (this.textFuriganaVector.size() == 0) {
-        return;
-      }
+    // Search
+    return readingIndex.search(query);
+  }
 
-            /*
-            // Debug
-            String str = "";
-            for (TextFurigana text : this.textFuriganaVector)
-                str += "'" + text.text() + "' ";
-            */
-
-      // r[] - ideal offsets
-      float[] r = new float[this.textFuriganaVector.size()];
-      for (int i = 0; i < this.textFuriganaVector.size(); i++) {
-        r[i] = this.textFuriganaVector.get(i).getOffset();
-      }
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    getViewTreeObserver().addOnPreDrawListener(preDrawListener);
+  }
 
-      // a[] - constraint matrix
-      float[][] a = new float[this.textFuriganaVector.size() + 1][this.textFuriganaVector.size()];
-      for (int i = 0; i < a.length; i++) {
-        for (int j = 0; j < a[0].length; j++) {
-          a[i][j] = 0.0f;
-        }
-      }
-      a[0][0] = 1.0f;
-      for (int i = 1; i < a.length - 2; i++) {
-        a[i][i - 1] = -1.0f;
-        a[i][i] = 1.0f;
-      }
-      a[a.length - 1][a[0].length - 1] = -1.0f;
-
-      // b[] - constraint vector
-      float[] b = new float[this.textFuriganaVector.size() + 1];
-      b[0] = -r[0] + (0.5f * this.textFuriganaVector.get(0).width());
-      for (int i = 1; i < b.length - 2; i++) {
-        b[i] = (0.5f * (this.textFuriganaVector.get(i).width() + this.textFuriganaVector.get(i - 1)
-            .width())) + (r[i - 1] - r[i]);
-      }
-      b[b.length - 1] =
-          -FuriganaView.this.lineMax + r[r.length - 1] + (0.5f * this.textFuriganaVector
-              .get(this.textFuriganaVector.size() - 1).width());
-
-      // Calculate constraint optimization
-      float[] x = new float[this.textFuriganaVector.size()];
-      for (int i = 0; i < x.length; i++) {
-        x[i] = 0.0f;
-      }
-      QuadraticOptimizer co = new QuadraticOptimizer(a, b);
-      co.calculate(x);
-      for (int i = 0; i < x.length; i++) {
-        this.floatVectorOffset.add(x[i] + r[i]);
-      }
+  @Override
+  protected void onDetachedFromWindow() {
+    getViewTreeObserver().removeOnPreDrawListener(preDrawListener);
+    stopHighlightTimeline();
+    super.onDetachedFromWindow();
+  }
+
+  private void invalidateRange(int start, int end) {
+    // Nothing laid out yet
+    if (layout.lineCount() == 0) {
+      this.invalidate();
+      return;
     }
 
-    // Draw
-    void draw(Canvas canvas, float y) {
-      y -= furiganaPaint.descent();
-      if (this.floatVectorOffset.size() == this.textFuriganaVector.size()) {
-        // Render with fixed offsets
-        for (int i = 0; i < this.floatVectorOffset.size(); i++) {
-          this.textFuriganaVector.get(i).draw(canvas, this.floatVectorOffset.get(i), y);
-        }
-      } else {
-        // Render with original offsets
-        for (TextFurigana text : this.textFuriganaVector) {
-          text.draw(canvas, text.getOffset(), y);
-        }
+    // Loop lines
+    for (int i = 0; i < layout.lineCount(); i++) {
+      TextLayout<TextPaint>.LineNormal line = layout.lineNormal(i);
+      if (line.start() < end && line.end() > start) {
+        this.invalidate(0, (int) Math.floor(lineSize * i), getWidth(),
+            (int) Math.ceil(lineSize * (i + 1)));
       }
     }
   }
 
-  class LineNormal {
+  private void internalSetText(String text, int startHighlight, int endHighlight) {
 
-    // Text
-    private Vector<TextNormal> textNormalVector = new Vector<>();
+    // Keep markup, parsing and measuring wait for the next layout
+    this.text = text;
+    this.textDirty = true;
 
-    // Elements
-    int size() {
-      return this.textNormalVector.size();
-    }
+    // Highlight ranges point into the old text, runs are styled again when measured
+    layout.highlights.clear();
 
-    void add(Vector<TextNormal> text) {
-      this.textNormalVector.addAll(text);
+    // Highlight
+    if (startHighlight >= endHighlight) {
+      startHighlight = 0;
+      endHighlight = 0;
     }
-
-    // Draw
-    void draw(Canvas canvas, float y) {
-      y -= normalTextPaint.descent();
-      float x = 0.0f;
-      for (TextNormal text : this.textNormalVector) {
-        x += text.draw(canvas, x, y);
-      }
+    this.startHighlight = startHighlight;
+    this.endHighlight = endHighlight;
+
+    // Check the size before the next draw, so only the latest of several texts is measured;
+    // auto fit text may change size so it always goes through layout
+    if (layoutMeasured && autoFitMaxTextSize <= 0.0f && getVisibility() != GONE
+        && isAttachedToWindow()) {
+      this.textPending = true;
+      this.invalidate();
+      return;
     }
-  }
-
-  class Span {
 
-    // Text
-    private TextFurigana textFurigana = null;
-    private Vector<TextNormal> textNormalVector = new Vector<>();
+    // Invalidate view
+    this.textPending = false;
+    this.invalidate();
+    this.requestLayout();
+  }
 
-    // Widths
-    private Vector<Float> floatVectorWidthChars = new Vector<>();
-    private float widthTotal = 0.0f;
+  // Lay out pending text against the last measured width; draw if the size stays the same,
+  // otherwise skip this frame and measure again
+  private boolean checkPendingText() {
+    if (!textPending) {
+      return true;
+    }
+    textPending = false;
+    if (!layoutMeasured || isLayoutRequested()) {
+      return true;
+    }
+    int oldWidth = measuredWidthValue;
+    int oldHeight = measuredHeightValue;
+    ensureLines();
+    calculateSize(lastWidthMeasureSpec, lastHeightMeasureSpec);
+    if (measuredWidthValue == oldWidth && measuredHeightValue == oldHeight) {
+      return true;
+    }
+    this.requestLayout();
+    return false;
+  }
 
-    // Constructors
-    Span(String furiganaTextData, String kanjiTextData, int startHighlight, int endHighlight) {
-      // Furigana text
-      if (furiganaTextData.length() > 0) {
-        textFurigana = new TextFurigana(furiganaTextData);
-      }
+  // Parse and measure text if changed since last time
+  private void ensureText() {
+    if (textDirty) {
+      textDirty = false;
+      sizeDirty = true;
+      parseText();
+    }
+    if (sizeDirty) {
+      sizeDirty = false;
+      measureText();
+    }
+  }
 
-      // Normal text
-      if (startHighlight < kanjiTextData.length() && endHighlight > 0
-          && startHighlight < endHighlight) {
+  // Lines for latest text, laid out at the last measured width
+  private void ensureLines() {
+    ensureText();
+    if (linesDirty && layoutMeasured) {
+      calculateText(layoutWidth);
+    }
+  }
 
-        // Fix marked bounds
-        startHighlight = Math.max(0, startHighlight);
-        endHighlight = Math.min(kanjiTextData.length(), endHighlight);
+  private void parseText() {
+    linesDirty = true;
+    readingIndexDirty = true;
+    layout.parse(text);
+  }
 
-        // Prefix
-        if (startHighlight > 0) {
-          textNormalVector.add(new TextNormal(kanjiTextData.substring(0, startHighlight), false));
-        }
+  // Measure text buffers and spans
+  private void measureText() {
+    // Lines depend on the sizes
+    linesDirty = true;
 
-        // Marked
-        if (endHighlight > startHighlight) {
-          textNormalVector
-              .add(new TextNormal(kanjiTextData.substring(startHighlight, endHighlight), true));
-        }
+    // Linesize
+    normalHeight = normalTextPaint.descent() - normalTextPaint.ascent();
+    furiganaHeight = furiganaPaint.descent() - furiganaPaint.ascent();
+    lineSize = furiganaPaint.getFontSpacing() + Math
+        .max(normalTextPaint.getFontSpacing(), highlightTextPaint.getFontSpacing());
 
-        // Postfix
-        if (endHighlight < kanjiTextData.length()) {
-          textNormalVector.add(new TextNormal(kanjiTextData.substring(endHighlight), false));
-        }
+    // Character widths and spans are measured as lines reach them
+    layout.measure();
+  }
 
-      } else {
+  // Release internal objects to the pools, e.g. from an adapter's onViewRecycled
+  public void recycle() {
+    stopHighlightTimeline();
+    timelineOffsets = null;
+    timelineTimes = null;
+    clearHighlights();
+    layout.releaseLines();
+    layout.releaseSpans();
+    text = "";
+    textDirty = false;
+    textPending = false;
+    linesDirty = false;
+    readingsPending = false;
+    readingIndexDirty = true;
+    startHighlight = 0;
+    endHighlight = 0;
+  }
 
-        // Non marked
-        textNormalVector.add(new TextNormal(kanjiTextData, false));
+  // Drawing
+  private void drawLineNormal(Canvas canvas, TextLayout<TextPaint>.LineNormal line, float y) {
+    y -= normalTextPaint.descent();
+    float x = 0.0f;
+    for (int i = 0; i < line.size(); i++) {
+      x += drawTextNormal(canvas, line.get(i), x, y);
+    }
+  }
 
+  private float drawTextNormal(Canvas canvas, TextLayout<TextPaint>.TextNormal text, float x,
+      float y) {
+    if (text.runCount() == 0) {
+      drawRun(canvas, text, text.start(), text.end(), x, y, normalTextPaint);
+    } else {
+      for (int i = 0; i < text.runCount(); i++) {
+        TextPaint paint = text.runStyle(i);
+        x += drawRun(canvas, text, text.runStart(i), text.runEnd(i), x, y,
+            paint != null ? paint : normalTextPaint);
       }
-
-      // Widths
-      calculateWidths();
     }
+    return text.width();
+  }
 
-    Span(Vector<TextNormal> normal) {
-      // Only normal text
-      textNormalVector = normal;
+  // Draw run with the highlighted part on top
+  private float drawRun(Canvas canvas, TextLayout<TextPaint>.TextNormal text, int from, int to,
+      float x, float y, TextPaint paint) {
+    int markStart = Math.max(from, startHighlight);
+    int markEnd = Math.min(to, endHighlight);
 
-      // Widths
-      calculateWidths();
+    if (markStart >= markEnd) {
+      return drawRange(canvas, text, from, to, x, y, paint);
     }
+    float width = drawRange(canvas, text, from, markStart, x, y, paint);
+    width += drawRange(canvas, text, markStart, markEnd, x + width, y, highlightTextPaint);
+    width += drawRange(canvas, text, markEnd, to, x + width, y, paint);
+    return width;
+  }
 
-    // Text
-    TextFurigana furigana(float x) {
-      if (textFurigana == null) {
-        return null;
-      }
-      textFurigana.setOffset(x + (widthTotal / 2.0f));
-      return textFurigana;
+  private float drawRange(Canvas canvas, TextLayout<TextPaint>.TextNormal text, int from, int to,
+      float x, float y, TextPaint paint) {
+    // Check
+    if (from >= to) {
+      return 0.0f;
     }
 
-    Vector<TextNormal> normal() {
-      return textNormalVector;
-    }
+    // Draw and return width
+    canvas.drawText(layout.markup.normalChars, from, to - from, x, y, paint);
+    return text.width(from, to);
+  }
 
-    // Widths
-    Vector<Float> widths() {
-      return floatVectorWidthChars;
+  // Draw, returns whether the final placement was drawn
+  private boolean drawLineFurigana(Canvas canvas, TextLayout<TextPaint>.LineFurigana line,
+      float y, boolean limited) {
+    boolean placed = line.place(limited);
+    y -= furiganaPaint.descent();
+    for (int i = 0; i < line.size(); i++) {
+      TextLayout<TextPaint>.TextFurigana text = line.get(i);
+      float x = line.offset(i) - text.width() / 2.0f;
+      if (x < 0) {
+        x = 0;
+      } else if (x + text.width() > canvas.getWidth()) {
+        x = canvas.getWidth() - text.width();
+      }
+      canvas.drawText(layout.markup.furiganaChars, text.start(), text.end() - text.start(), x, y,
+          furiganaPaint);
     }
+    return placed;
+  }
 
-    private void calculateWidths() {
-      // Chars
-      if (textFurigana == null) {
-        for (TextNormal normal : textNormalVector) {
-          for (float v : normal.getCharsWidth()) {
-            floatVectorWidthChars.add(v);
-          }
-        }
-      } else {
-        float sum = 0.0f;
-        for (TextNormal normal : textNormalVector) {
-          for (float v : normal.getCharsWidth()) {
-            sum += v;
-          }
-        }
-        floatVectorWidthChars.add(sum);
-      }
+  // Measurer over a paint
+  private static class PaintMeasurer implements Measurer {
 
-      // Total
-      widthTotal = 0.0f;
-      for (float v : floatVectorWidthChars) {
-        widthTotal += v;
-      }
+    // Paint and buffer of the widths it writes from index 0
+    private final TextPaint paint;
+    private float[] scratch = new float[0];
+
+    PaintMeasurer(TextPaint paint) {
+      this.paint = paint;
     }
 
-    // Split
-    void split(int offset, Vector<TextNormal> textNormalVectorOne,
-        Vector<TextNormal> textNormalVectorTwo) {
-      // Check if no furigana
-      assert (textFurigana == null);
-
-      // Split normal list
-      for (TextNormal cur : textNormalVector) {
-        if (offset <= 0) {
-          textNormalVectorTwo.add(cur);
-        } else if (offset >= cur.length()) {
-          textNormalVectorOne.add(cur);
-        } else {
-          TextNormal[] split = cur.split(offset);
-          textNormalVectorOne.add(split[0]);
-          textNormalVectorTwo.add(split[1]);
-        }
-        offset -= cur.length();
+    @Override
+    public void getTextWidths(char[] chars, int start, int count, float[] widths,
+        int widthsStart) {
+      if (scratch.length < count) {
+        scratch = new float[Math.max(count, 2 * scratch.length)];
       }
+      paint.getTextWidths(chars, start, count, scratch);
+      System.arraycopy(scratch, 0, widths, widthsStart, count);
+    }
+
+    @Override
+    public float measureText(char[] chars, int start, int count) {
+      return paint.measureText(chars, start, count);
     }
   }
 }
-
@@ -0,0 +1,145 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Interval index of highlight ranges, sorted by start with the maximum end of every implicit
+// subtree so overlap queries run in O(log n + k)
+class HighlightIndex<T> {
+
+  // Range
+  static final class Range<T> {
+
+    final int id;
+    final int start;
+    final int end;
+    final T value;
+
+    Range(int id, int start, int end, T value) {
+      this.id = id;
+      this.start = start;
+      this.end = end;
+      this.value = value;
+    }
+  }
+
+  // Sort order
+  private static final Comparator<Range<?>> BY_START = new Comparator<Range<?>>() {
+    @Override
+    public int compare(Range<?> a, Range<?> b) {
+      return a.start != b.start ? Integer.compare(a.start, b.start) : Integer.compare(a.id, b.id);
+    }
+  };
+
+  // Ranges
+  private final List<Range<T>> ranges = new ArrayList<>();
+  private int[] maxEnd = new int[0];
+  private boolean dirty = false;
+  private int nextId = 1;
+
+  // Add
+  int add(int start, int end, T value) {
+    if (start >= end) {
+      throw new IllegalArgumentException("empty range " + start + ".." + end);
+    }
+    Range<T> range = new Range<>(nextId++, start, end, value);
+    ranges.add(range);
+    dirty = true;
+    return range.id;
+  }
+
+  // Remove, returns the removed range or null
+  Range<T> remove(int id) {
+    for (int i = 0; i < ranges.size(); i++) {
+      if (ranges.get(i).id == id) {
+        dirty = true;
+        return ranges.remove(i);
+      }
+    }
+    return null;
+  }
+
+  void clear() {
+    ranges.clear();
+    maxEnd = new int[0];
+    dirty = false;
+  }
+
+  // Elements
+  int size() {
+    return ranges.size();
+  }
+
+  Range<T> get(int i) {
+    return ranges.get(i);
+  }
+
+  // Covered characters
+  int start() {
+    rebuild();
+    return ranges.isEmpty() ? 0 : ranges.get(0).start;
+  }
+
+  int end() {
+    rebuild();
+    return ranges.isEmpty() ? 0 : maxEnd[ranges.size() >>> 1];
+  }
+
+  // Query ranges overlapping [start, end), appended in start order
+  void query(int start, int end, List<Range<T>> out) {
+    if (start >= end || ranges.isEmpty()) {
+      return;
+    }
+    rebuild();
+    query(0, ranges.size(), start, end, out);
+  }
+
+  private void query(int lo, int hi, int start, int end, List<Range<T>> out) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (maxEnd[mid] <= start) {
+        return;
+      }
+
+      // Left subtree
+      query(lo, mid, start, end, out);
+
+      // Node and right subtree start at or after mid
+      Range<T> range = ranges.get(mid);
+      if (range.start >= end) {
+        return;
+      }
+      if (range.end > start) {
+        out.add(range);
+      }
+      lo = mid + 1;
+    }
+  }
+
+  // Sort and recompute subtree maximums
+  private void rebuild() {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+    Collections.sort(ranges, BY_START);
+    if (maxEnd.length < ranges.size()) {
+      maxEnd = new int[ranges.size()];
+    }
+    Arrays.fill(maxEnd, 0);
+    rebuild(0, ranges.size());
+  }
+
+  private int rebuild(int lo, int hi) {
+    if (lo >= hi) {
+      return Integer.MIN_VALUE;
+    }
+    int mid = (lo + hi) >>> 1;
+    int max = Math.max(ranges.get(mid).end, Math.max(rebuild(lo, mid), rebuild(mid + 1, hi)));
+    maxEnd[mid] = max;
+    return max;
+  }
+}
@@ -0,0 +1,55 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+// Result of FuriganaView.hitTest, reusable across calls
+public class HitResult {
+
+  // Character
+  private int offset = -1;
+  private int line = -1;
+
+  // Containing span
+  private int spanStart = -1;
+  private int spanEnd = -1;
+  private String text = null;
+  private String reading = null;
+
+  // Getters
+  public int getOffset() {
+    return offset;
+  }
+
+  public int getLine() {
+    return line;
+  }
+
+  public int getSpanStart() {
+    return spanStart;
+  }
+
+  public int getSpanEnd() {
+    return spanEnd;
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  // Null when the span has no furigana
+  public String getReading() {
+    return reading;
+  }
+
+  // Setters
+  void set(int offset, int line, int spanStart, int spanEnd, String text, String reading) {
+    this.offset = offset;
+    this.line = line;
+    this.spanStart = spanStart;
+    this.spanEnd = spanEnd;
+    this.text = text;
+    this.reading = reading;
+  }
+
+  void clear() {
+    set(-1, -1, -1, -1, null, null);
+  }
+}
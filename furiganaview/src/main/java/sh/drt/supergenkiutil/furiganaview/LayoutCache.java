@@ -0,0 +1,340 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Persistent cache of computed layouts, shared by any number of views on the UI thread.
+// Records are appended to a memory-mapped file and found through an in-memory index that is
+// rebuilt from the file when it is opened. Line ends and reading offsets are separate records,
+// as readings are only placed once their lines are drawn. The whole file is dropped when the format, the
+// library version or the font fingerprint change, or when it grows past its size limit.
+public class LayoutCache {
+
+  // Constants
+  static final int MAGIC = 0x46475643;
+  static final int FORMAT_VERSION = 2;
+  static final int HEADER_SIZE = 20;
+  static final int RECORD_HEADER_SIZE = 16;
+  static final int KIND_LINES = 1;
+  static final int KIND_READINGS = 2;
+  static final int DEFAULT_MAX_BYTES = 1 << 20;
+  static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  static final long FNV_PRIME = 0x100000001b3L;
+
+  // Entry, reused across lookups
+  static final class Entry {
+
+    int lineCount = 0;
+    float lineMax = 0.0f;
+    float ellipsisX = -1.0f;
+
+    // Line ends as (span index, offset in span) pairs, preceded by the start of the first line
+    int[] lineBreaks = new int[0];
+
+    // Reading offsets of all lines in order, count -1 while not placed
+    int readingCount = -1;
+    float[] readingOffsets = new float[0];
+
+    void ensureCapacity(int lines, int readings) {
+      if (lineBreaks.length < 2 * (lines + 1)) {
+        lineBreaks = new int[2 * (lines + 1)];
+      }
+      if (readingOffsets.length < readings) {
+        readingOffsets = new float[readings];
+      }
+    }
+
+  }
+
+  // Record sizes after their header, in long arithmetic so corrupt counts cannot wrap around
+  static long linesSize(int lineCount) {
+    return 4L * (3 + 2 * ((long) lineCount + 1));
+  }
+
+  static long readingsSize(int readingCount) {
+    return 4L * (1 + (long) readingCount);
+  }
+
+  // File
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long fingerprint;
+  private final int maxBytes;
+  private MappedByteBuffer buffer;
+  private int end;
+
+  // Index of record positions by key, open addressing
+  private long[] indexKeys = new long[64];
+  private int[] indexPositions = new int[64];
+  private int indexSize = 0;
+
+  // Constructors
+  public LayoutCache(File path, String fontFingerprint) throws IOException {
+    this(path, fontFingerprint, DEFAULT_MAX_BYTES);
+  }
+
+  public LayoutCache(File path, String fontFingerprint, int maxBytes) throws IOException {
+    this.maxBytes = Math.max(maxBytes, 4096);
+    this.fingerprint = hash(hash(FNV_OFFSET, BuildConfig.VERSION_NAME), fontFingerprint);
+    this.file = new RandomAccessFile(path, "rw");
+    this.channel = file.getChannel();
+
+    // Map existing file
+    boolean empty = channel.size() < HEADER_SIZE;
+    map((int) Math.min(Math.max(channel.size(), 4096), this.maxBytes));
+
+    // Check header
+    if (empty || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != FORMAT_VERSION || buffer.getLong(8) != fingerprint) {
+      reset();
+    } else {
+      end = buffer.getInt(16);
+      if (end < HEADER_SIZE || end > buffer.capacity()) {
+        reset();
+      } else {
+        rebuildIndex();
+      }
+    }
+  }
+
+  // Key helpers
+  public static long hash(long h, String s) {
+    if (s == null) {
+      return hash(h, 0);
+    }
+    for (int i = 0; i < s.length(); i++) {
+      h = (h ^ s.charAt(i)) * FNV_PRIME;
+    }
+    return hash(h, s.length());
+  }
+
+  public static long hash(long h, int v) {
+    for (int i = 0; i < 4; i++) {
+      h = (h ^ (v & 0xff)) * FNV_PRIME;
+      v >>>= 8;
+    }
+    return h;
+  }
+
+  public static long hash(long h, float v) {
+    return hash(h, Float.floatToIntBits(v));
+  }
+
+  // Lookup, with the reading count -1 when readings have not been stored yet
+  synchronized boolean get(long key, Entry entry) {
+    // Lines, a damaged record is a miss
+    int pos = find(key);
+    if (pos < 0 || !valid(pos) || buffer.getInt(pos + 12) != KIND_LINES) {
+      return false;
+    }
+    int p = pos + RECORD_HEADER_SIZE;
+    int lineCount = buffer.getInt(p);
+    entry.ensureCapacity(lineCount, 0);
+    entry.lineCount = lineCount;
+    entry.lineMax = buffer.getFloat(p + 4);
+    entry.ellipsisX = buffer.getFloat(p + 8);
+    p += 12;
+    for (int i = 0; i < 2 * (lineCount + 1); i++, p += 4) {
+      entry.lineBreaks[i] = buffer.getInt(p);
+    }
+
+    // Readings
+    entry.readingCount = -1;
+    pos = find(readingsKey(key));
+    if (pos < 0 || !valid(pos) || buffer.getInt(pos + 12) != KIND_READINGS) {
+      return true;
+    }
+    p = pos + RECORD_HEADER_SIZE;
+    int readingCount = buffer.getInt(p);
+    entry.ensureCapacity(lineCount, readingCount);
+    entry.readingCount = readingCount;
+    p += 4;
+    for (int i = 0; i < readingCount; i++, p += 4) {
+      entry.readingOffsets[i] = buffer.getFloat(p);
+    }
+    return true;
+  }
+
+  // Append lines, and readings once placed; records already stored are kept
+  synchronized void put(long key, Entry entry) throws IOException {
+    // Records to write
+    long readingsKey = readingsKey(key);
+    int linesSize = RECORD_HEADER_SIZE + (int) linesSize(entry.lineCount);
+    int readingsSize = entry.readingCount >= 0
+        ? RECORD_HEADER_SIZE + (int) readingsSize(entry.readingCount) : 0;
+    if (HEADER_SIZE + linesSize + readingsSize > maxBytes) {
+      return;
+    }
+    if (find(readingsKey) >= 0) {
+      readingsSize = 0;
+    }
+
+    // Make room for both, a reset drops the lines too
+    int size = (find(key) < 0 ? linesSize : 0) + readingsSize;
+    if (size == 0) {
+      return;
+    }
+    if (end + size > maxBytes) {
+      reset();
+      size = linesSize + readingsSize;
+    }
+    if (end + size > buffer.capacity()) {
+      map(Math.min(maxBytes, Math.max(end + size, 2 * buffer.capacity())));
+    }
+
+    // Lines
+    if (find(key) < 0) {
+      int p = append(key, KIND_LINES, linesSize);
+      buffer.putInt(p, entry.lineCount);
+      buffer.putFloat(p + 4, entry.lineMax);
+      buffer.putFloat(p + 8, entry.ellipsisX);
+      p += 12;
+      for (int i = 0; i < 2 * (entry.lineCount + 1); i++, p += 4) {
+        buffer.putInt(p, entry.lineBreaks[i]);
+      }
+      commit(key, p);
+    }
+
+    // Readings
+    if (readingsSize > 0) {
+      int p = append(readingsKey, KIND_READINGS, readingsSize);
+      buffer.putInt(p, entry.readingCount);
+      p += 4;
+      for (int i = 0; i < entry.readingCount; i++, p += 4) {
+        buffer.putFloat(p, entry.readingOffsets[i]);
+      }
+      commit(readingsKey, p);
+    }
+  }
+
+  // Key of the readings of the lines stored under key
+  private static long readingsKey(long key) {
+    return hash(hash(hash(FNV_OFFSET, (int) key), (int) (key >>> 32)), KIND_READINGS);
+  }
+
+  // Write a record header at the end, returns where its contents go
+  private int append(long key, int kind, int size) {
+    buffer.putLong(end, key);
+    buffer.putInt(end + 8, size - RECORD_HEADER_SIZE);
+    buffer.putInt(end + 12, kind);
+    return end + RECORD_HEADER_SIZE;
+  }
+
+  private void commit(long key, int recordEnd) {
+    int pos = end;
+    end = recordEnd;
+    buffer.putInt(16, end);
+    insert(key, pos);
+  }
+
+  public synchronized void clear() {
+    reset();
+  }
+
+  public synchronized void close() throws IOException {
+    buffer.force();
+    channel.close();
+    file.close();
+  }
+
+  // File
+  private void map(int size) throws IOException {
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  // Old records past the end are ignored and overwritten
+  private void reset() {
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, FORMAT_VERSION);
+    buffer.putLong(8, fingerprint);
+    end = HEADER_SIZE;
+    buffer.putInt(16, end);
+    clearIndex();
+  }
+
+  // Index
+  private void rebuildIndex() {
+    clearIndex();
+    int pos = HEADER_SIZE;
+    while (pos + RECORD_HEADER_SIZE <= end) {
+      if (!valid(pos)) {
+        break;
+      }
+      insert(buffer.getLong(pos), pos);
+      pos += RECORD_HEADER_SIZE + buffer.getInt(pos + 8);
+    }
+    end = pos;
+  }
+
+  // Whether the record at pos lies before the end and its count agrees with its size
+  private boolean valid(int pos) {
+    if (pos + RECORD_HEADER_SIZE + 4 > end) {
+      return false;
+    }
+    int size = buffer.getInt(pos + 8);
+    if (size <= 0 || size > end - pos - RECORD_HEADER_SIZE) {
+      return false;
+    }
+    int count = buffer.getInt(pos + RECORD_HEADER_SIZE);
+    if (count < 0) {
+      return false;
+    }
+    int kind = buffer.getInt(pos + 12);
+    if (kind == KIND_LINES) {
+      return linesSize(count) == size;
+    }
+    return kind == KIND_READINGS && readingsSize(count) == size;
+  }
+
+  private void clearIndex() {
+    for (int i = 0; i < indexKeys.length; i++) {
+      indexPositions[i] = -1;
+    }
+    indexSize = 0;
+  }
+
+  private int find(long key) {
+    int mask = indexKeys.length - 1;
+    for (int i = slot(key, mask); indexPositions[i] >= 0; i = (i + 1) & mask) {
+      if (indexKeys[i] == key) {
+        return indexPositions[i];
+      }
+    }
+    return -1;
+  }
+
+  private void insert(long key, int pos) {
+    // Grow at half load
+    if (2 * (indexSize + 1) > indexKeys.length) {
+      long[] keys = indexKeys;
+      int[] positions = indexPositions;
+      indexKeys = new long[2 * keys.length];
+      indexPositions = new int[2 * keys.length];
+      clearIndex();
+      for (int i = 0; i < keys.length; i++) {
+        if (positions[i] >= 0) {
+          insert(keys[i], positions[i]);
+        }
+      }
+    }
+
+    // Insert or replace
+    int mask = indexKeys.length - 1;
+    int i = slot(key, mask);
+    while (indexPositions[i] >= 0 && indexKeys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if (indexPositions[i] < 0) {
+      indexSize++;
+    }
+    indexKeys[i] = key;
+    indexPositions[i] = pos;
+  }
+
+  private static int slot(long key, int mask) {
+    return (int) (key ^ (key >>> 32)) * 0x9e3779b9 >>> 7 & mask;
+  }
+}
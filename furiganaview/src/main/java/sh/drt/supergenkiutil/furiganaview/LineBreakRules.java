@@ -0,0 +1,61 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import java.util.BitSet;
+
+// Line break rules (kinsoku) as tables of characters that may not start or end a line
+public class LineBreakRules {
+
+  // Closing brackets, punctuation, small kana, iteration marks and prolonged sound marks
+  static final String JAPANESE_NO_START = ")]}）］｝〕〉》」』】〙〗〟’”｠»"
+      + "、。，．,.・：；:;？！?!‼⁇⁈⁉"
+      + "ぁぃぅぇぉっゃゅょゎゕゖァィゥェォッャュョヮヵヶㇰㇱㇲㇳㇴㇵㇶㇷㇸㇹㇺㇻㇼㇽㇾㇿ"
+      + "ゝゞヽヾ々〻ー‐゠–〜～";
+
+  // Opening brackets
+  static final String JAPANESE_NO_END = "([{（［｛〔〈《「『【〘〖〝‘“｟«";
+
+  // Presets
+  public static final LineBreakRules NONE = new LineBreakRules("", "");
+  public static final LineBreakRules JAPANESE = new LineBreakRules(JAPANESE_NO_START,
+      JAPANESE_NO_END);
+
+  // Tables
+  private final BitSet noStart = new BitSet(Character.MAX_VALUE + 1);
+  private final BitSet noEnd = new BitSet(Character.MAX_VALUE + 1);
+  private final long fingerprint;
+
+  // Constructor
+  public LineBreakRules(String noStart, String noEnd) {
+    for (int i = 0; i < noStart.length(); i++) {
+      this.noStart.set(noStart.charAt(i));
+    }
+    for (int i = 0; i < noEnd.length(); i++) {
+      this.noEnd.set(noEnd.charAt(i));
+    }
+    this.fingerprint = LayoutCache.hash(LayoutCache.hash(LayoutCache.FNV_OFFSET,
+        this.noStart.toString()), this.noEnd.toString());
+  }
+
+  // Rules
+  public boolean canStartLine(char c) {
+    return !noStart.get(c);
+  }
+
+  public boolean canEndLine(char c) {
+    return !noEnd.get(c);
+  }
+
+  // Whether a line may end after before and the next one start with after
+  boolean canBreak(char before, char after) {
+    return !noEnd.get(before) && !noStart.get(after);
+  }
+
+  boolean isEmpty() {
+    return noStart.isEmpty() && noEnd.isEmpty();
+  }
+
+  // Layout cache key
+  long fingerprint() {
+    return fingerprint;
+  }
+}
@@ -0,0 +1,254 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import java.util.Arrays;
+
+// Greedy line breaking over character widths. A span with a reading is a single unit that is
+// never split, other spans break between any characters the rules allow. Characters are
+// measured as the breaker reaches them, so text past the last line is never measured.
+class LineBreaker {
+
+  // Characters measured per call at least
+  private static final int MEASURE_CHUNK = 64;
+
+  // Options
+  int maxLines = Integer.MAX_VALUE;
+  boolean ellipsize = false;
+  LineBreakRules rules = LineBreakRules.NONE;
+
+  // Text and its widths, measured for characters before measured; prefix sums in double so
+  // differences stay exact far into long texts
+  private Markup markup = null;
+  private Measurer measurer = null;
+  private float[] widths = new float[0];
+  private double[] prefix = new double[1];
+  private int measured = 0;
+
+  // Line ends as (span index, unit offset in span) pairs, preceded by the start of the first
+  // line
+  int[] breaks = new int[2];
+  int breakCount = 0;
+
+  // Sizes
+  float lineMax = 0.0f;
+  float ellipsisX = -1.0f;
+
+  // Text to break, measured on demand
+  void setMarkup(Markup markup, Measurer measurer) {
+    this.markup = markup;
+    this.measurer = measurer;
+    this.measured = 0;
+
+    // Buffers
+    int n = markup.normalLength;
+    if (widths.length < n) {
+      widths = new float[Math.max(n, 2 * widths.length)];
+    }
+    if (prefix.length < n + 1) {
+      prefix = new double[Math.max(n + 1, 2 * prefix.length)];
+    }
+  }
+
+  // Character widths, valid for measured characters; the array is kept until the next
+  // setMarkup
+  float[] widths() {
+    return widths;
+  }
+
+  // Measure characters before end, and the following ones up to a chunk of characters
+  void measureTo(int end) {
+    if (end <= measured) {
+      return;
+    }
+    int from = measured;
+    int to = Math.min(markup.normalLength, Math.max(end, from + MEASURE_CHUNK));
+
+    // Widths and prefix sums
+    measurer.getTextWidths(markup.normalChars, from, to - from, widths, from);
+    for (int i = from; i < to; i++) {
+      prefix[i + 1] = prefix[i] + widths[i];
+    }
+    measured = to;
+  }
+
+  // Width of the characters from start to end, measured as needed
+  float width(int start, int end) {
+    measureTo(end);
+    return (float) (prefix[end] - prefix[start]);
+  }
+
+  // Units, one per character or a single one for the whole span with a reading
+  int unitCount(int s) {
+    return markup.hasReading(s) ? 1 : markup.normalEnd(s) - markup.normalStart(s);
+  }
+
+  float unitWidth(int s, int i) {
+    if (markup.hasReading(s)) {
+      return width(markup.normalStart(s), markup.normalEnd(s));
+    }
+    int pos = markup.normalStart(s) + i;
+    measureTo(pos + 1);
+    return widths[pos];
+  }
+
+  // Lines
+  int lineCount() {
+    return breakCount - 1;
+  }
+
+  // Whether the lines show all text
+  boolean complete() {
+    return breaks[2 * breakCount - 2] == markup.spanCount() && breaks[2 * breakCount - 1] == 0;
+  }
+
+  // Break into lines of at most lineMaxValue, a negative value for a single line
+  void breakLines(float lineMaxValue, float ellipsisWidth) {
+    // Sizes
+    this.lineMax = 0.0f;
+    this.ellipsisX = -1.0f;
+
+    // Line ends
+    breakCount = 0;
+    addBreak(0, 0);
+    int spanCount = markup.spanCount();
+
+    // Check if no limits on width
+    if (lineMaxValue < 0.0) {
+      // Single line
+      this.lineMax = width(0, markup.normalLength);
+      addBreak(spanCount, 0);
+      return;
+    }
+
+    // Position
+    int spanI = 0;
+    int offset = 0;
+    float lineX = 0.0f;
+    boolean lineEmpty = true;
+    int lineCount = 0;
+    boolean kinsoku = !rules.isEmpty();
+
+    // Last line leaves room for the ellipsis if the rest does not fit
+    float limit = lineLimit(lineMaxValue, ellipsisWidth, 0, spanI, offset);
+
+    // Iterate
+    while (spanI < spanCount) {
+      // Calculate possible line size
+      int count = unitCount(spanI);
+      int i;
+      for (i = offset; i < count; i++) {
+        if (lineX + unitWidth(spanI, i) <= limit) {
+          lineX += unitWidth(spanI, i);
+        } else {
+          break;
+        }
+      }
+
+      // Nothing fits on an empty line, overflow with one character or the whole span
+      if (i == offset && i < count && lineEmpty) {
+        lineX += unitWidth(spanI, i);
+        i++;
+      }
+      lineEmpty &= (i == offset);
+
+      // Span fits entirely
+      if (i >= count) {
+        spanI++;
+        offset = 0;
+        continue;
+      }
+
+      // Move the break back to where the rules allow one, if any on this line
+      if (kinsoku) {
+        int lineSpan = breaks[2 * breakCount - 2];
+        int lineOffset = breaks[2 * breakCount - 1];
+        int breakSpan = spanI;
+        int breakOffset = i;
+        while (!canBreakAt(breakSpan, breakOffset)) {
+          // Previous unit
+          if (breakOffset > 0) {
+            breakOffset--;
+          } else {
+            breakSpan--;
+            breakOffset = Math.max(0, unitCount(breakSpan) - 1);
+          }
+          if (breakSpan < lineSpan || breakSpan == lineSpan && breakOffset <= lineOffset) {
+            break;
+          }
+        }
+        if (breakSpan > lineSpan || breakSpan == lineSpan && breakOffset > lineOffset) {
+          lineX -= width(position(breakSpan, breakOffset), position(spanI, i));
+          spanI = breakSpan;
+          i = breakOffset;
+        }
+      }
+
+      // Add new line up to here
+      this.lineMax = (this.lineMax > lineX ? this.lineMax : lineX);
+      addBreak(spanI, i);
+      lineCount++;
+
+      // Stop at line limit
+      if (lineCount >= maxLines) {
+        if (ellipsize) {
+          this.ellipsisX = lineX;
+          this.lineMax = Math.max(this.lineMax, lineX + ellipsisWidth);
+        }
+        return;
+      }
+
+      // Reset
+      offset = i;
+      lineX = 0.0f;
+      lineEmpty = true;
+      limit = lineLimit(lineMaxValue, ellipsisWidth, lineCount, spanI, offset);
+    }
+
+    // Last line
+    if (!lineEmpty) {
+      this.lineMax = (this.lineMax > lineX ? this.lineMax : lineX);
+      addBreak(spanCount, 0);
+    }
+  }
+
+  // Text buffer position of a break before unit offset of a span
+  private int position(int spanI, int offset) {
+    return markup.hasReading(spanI) ? markup.normalStart(spanI)
+        : markup.normalStart(spanI) + offset;
+  }
+
+  // Whether the rules allow a break before unit offset of a span
+  private boolean canBreakAt(int spanI, int offset) {
+    int pos = position(spanI, offset);
+    char[] chars = markup.normalChars;
+    return pos <= 0 || pos >= markup.normalLength || rules.canBreak(chars[pos - 1], chars[pos]);
+  }
+
+  // Width available to a line, less the ellipsis on a last line that cannot show the rest
+  private float lineLimit(float lineMaxValue, float ellipsisWidth, int line, int spanI,
+      int offset) {
+    if (ellipsize && line == maxLines - 1 && !remainingFits(spanI, offset, lineMaxValue)) {
+      return lineMaxValue - ellipsisWidth;
+    }
+    return lineMaxValue;
+  }
+
+  // Whether the text from the given position on fits in width
+  private boolean remainingFits(int spanI, int offset, float width) {
+    for (int s = spanI; s < markup.spanCount() && width >= 0.0f; s++) {
+      for (int i = (s == spanI) ? offset : 0; i < unitCount(s) && width >= 0.0f; i++) {
+        width -= unitWidth(s, i);
+      }
+    }
+    return width >= 0.0f;
+  }
+
+  // Record line end
+  private void addBreak(int spanIndex, int offset) {
+    if (breaks.length < 2 * (breakCount + 1)) {
+      breaks = Arrays.copyOf(breaks, 4 * (breakCount + 1));
+    }
+    breaks[2 * breakCount] = spanIndex;
+    breaks[2 * breakCount + 1] = offset;
+    breakCount++;
+  }
+}
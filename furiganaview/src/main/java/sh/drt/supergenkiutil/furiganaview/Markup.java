@@ -0,0 +1,129 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import java.util.Arrays;
+
+// Parsed markup: base text and readings copied into buffers shared by all spans, with the
+// buffer ranges of every span. "{base;reading}" is a span with a reading, any other text is a
+// span of base text only.
+class Markup {
+
+  // Text buffers
+  char[] normalChars = new char[0];
+  int normalLength = 0;
+  char[] furiganaChars = new char[0];
+  int furiganaLength = 0;
+
+  // Spans as (normal start, normal end, furigana start, furigana end)
+  private int[] spans = new int[0];
+  private int spanCount = 0;
+
+  // Parse
+  void parse(String text) {
+    clear();
+
+    // Spannify text
+    int pos = 0;
+    while (pos < text.length()) {
+      int idx = text.indexOf('{', pos);
+      if (idx >= 0) {
+        // Prefix string
+        if (idx > pos) {
+          addSpan(text, pos, idx, 0, 0);
+          pos = idx;
+        }
+
+        // End bracket
+        idx = text.indexOf('}', pos);
+        if (idx < 0) {
+          // Error
+          break;
+        } else if (idx == pos + 1) {
+          // Empty bracket
+          pos += 2;
+          continue;
+        }
+
+        // Spans
+        int kanjiEnd = text.indexOf(';', pos + 1);
+        if (kanjiEnd < 0 || kanjiEnd > idx) {
+          kanjiEnd = idx;
+        }
+        int furiganaEnd = kanjiEnd < idx ? text.indexOf(';', kanjiEnd + 1) : idx;
+        if (furiganaEnd < 0 || furiganaEnd > idx) {
+          furiganaEnd = idx;
+        }
+        addSpan(text, pos + 1, kanjiEnd, Math.min(kanjiEnd + 1, furiganaEnd), furiganaEnd);
+
+        // Remove text
+        pos = idx + 1;
+
+      } else {
+        // Single span
+        addSpan(text, pos, text.length(), 0, 0);
+        pos = text.length();
+      }
+    }
+  }
+
+  void clear() {
+    normalLength = 0;
+    furiganaLength = 0;
+    spanCount = 0;
+  }
+
+  // Spans
+  int spanCount() {
+    return spanCount;
+  }
+
+  int normalStart(int i) {
+    return spans[4 * i];
+  }
+
+  int normalEnd(int i) {
+    return spans[4 * i + 1];
+  }
+
+  int furiganaStart(int i) {
+    return spans[4 * i + 2];
+  }
+
+  int furiganaEnd(int i) {
+    return spans[4 * i + 3];
+  }
+
+  boolean hasReading(int i) {
+    return spans[4 * i + 3] > spans[4 * i + 2];
+  }
+
+  // Copy markup ranges into the text buffers and add a span for them
+  private void addSpan(String text, int kanjiStart, int kanjiEnd, int furiganaStart,
+      int furiganaEnd) {
+    // Normal text
+    int start = normalLength;
+    normalLength += kanjiEnd - kanjiStart;
+    if (normalChars.length < normalLength) {
+      normalChars = Arrays.copyOf(normalChars, Math.max(normalLength, 2 * normalChars.length));
+    }
+    text.getChars(kanjiStart, kanjiEnd, normalChars, start);
+
+    // Furigana text
+    int furigana = furiganaLength;
+    furiganaLength += furiganaEnd - furiganaStart;
+    if (furiganaChars.length < furiganaLength) {
+      furiganaChars = Arrays
+          .copyOf(furiganaChars, Math.max(furiganaLength, 2 * furiganaChars.length));
+    }
+    text.getChars(furiganaStart, furiganaEnd, furiganaChars, furigana);
+
+    // Span
+    if (spans.length < 4 * (spanCount + 1)) {
+      spans = Arrays.copyOf(spans, Math.max(16, 2 * spans.length));
+    }
+    spans[4 * spanCount] = start;
+    spans[4 * spanCount + 1] = normalLength;
+    spans[4 * spanCount + 2] = furigana;
+    spans[4 * spanCount + 3] = furiganaLength;
+    spanCount++;
+  }
+}
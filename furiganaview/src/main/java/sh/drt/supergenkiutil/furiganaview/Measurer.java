@@ -0,0 +1,11 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+// Text measurement, over a paint in the view and a fixed width table in tests
+interface Measurer {
+
+  // Widths of count characters from start, written to widths from widthsStart
+  void getTextWidths(char[] chars, int start, int count, float[] widths, int widthsStart);
+
+  // Width of count characters from start
+  float measureText(char[] chars, int start, int count);
+}
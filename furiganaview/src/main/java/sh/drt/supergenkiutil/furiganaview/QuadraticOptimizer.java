@@ -18,48 +18,91 @@ public class QuadraticOptimizer {
   // Variables
   float[][] m_a;
   float[] m_b;
+  int m_rows;
+  int m_cols;
+
+  // Scratch buffers, reused across calculations
+  float[] m_d = new float[0];
+  float[][] m_h = new float[0][0];
+  float[] m_p = new float[0];
 
   // Constructor
+  public QuadraticOptimizer() {
+  }
+
   public QuadraticOptimizer(float[][] a, float[] b) {
+    set(a, b, a.length, a[0].length);
+  }
+
+  // Set problem; arrays may be larger than rows x cols so they can be reused
+  public void set(float[][] a, float[] b, int rows, int cols) {
     // Variables
     m_a = a;
     m_b = b;
+    m_rows = rows;
+    m_cols = cols;
 
     // Check
-    assert (m_b.length == m_a.length);
+    assert (m_b.length >= m_rows && m_a.length >= m_rows);
+
+    // Scratch buffers
+    if (m_d.length < cols) {
+      m_d = new float[cols];
+      m_h = new float[cols][cols];
+      m_p = new float[cols];
+    }
   }
 
   // Calculate
   public void calculate(float[] x) {
-    // Check if calculation needed
-    if(phi(1.0f, x) == 0.0f)
-      return;
-
-    // Calculate
-    float sigma = 1.0f;
-    for(int k = 0; k < m_penalty_runs; k++) {
-      newton_solve(x, sigma);
-      sigma *= m_sigma_mul;
-    }
+    run(x, 0, false, 0L);
   }
 
-  private void newton_solve(float[] x, float sigma) {
-    for(int i = 0; i < m_newton_runs; i++)
+  // Finish a calculation stopped at the given Newton iteration
+  public void calculate(float[] x, int iteration) {
+    run(x, iteration, false, 0L);
+  }
+
+  // Calculate in steps, resuming at the given Newton iteration with the x of the previous step.
+  // Runs at least one iteration and stops once System.nanoTime() passes the deadline; returns
+  // the next iteration, or iterations() when done.
+  public int calculate(float[] x, int iteration, long deadline) {
+    return run(x, iteration, true, deadline);
+  }
+
+  public int iterations() {
+    return m_penalty_runs * m_newton_runs;
+  }
+
+  private int run(float[] x, int iteration, boolean limited, long deadline) {
+    // Check if calculation needed
+    if(iteration == 0 && phi(1.0f, x) == 0.0f)
+      return iterations();
+
+    // Penalty runs of Newton iterations, sigma grows with each run
+    int end = iterations();
+    while(iteration < end) {
+      float sigma = (float) Math.pow(m_sigma_mul, iteration / m_newton_runs);
       newton_iteration(x, sigma);
+      iteration++;
+      if(limited && System.nanoTime() - deadline >= 0)
+        break;
+    }
+    return iteration;
   }
 
   private void newton_iteration(float[] x, float sigma) {
     // Calculate gradient
-    float[] d = new float[x.length];
-    for(int i = 0; i < d.length; i++)
+    float[] d = m_d;
+    for(int i = 0; i < m_cols; i++)
       d[i] = phi_d1(i, sigma, x);
 
     // Calculate Hessian matrix (symmetric)
-    float[][] h = new float[x.length][x.length];
-    for(int i = 0; i < h.length; i++)
-      for(int j = i; j < h[0].length; j++)
+    float[][] h = m_h;
+    for(int i = 0; i < m_cols; i++)
+      for(int j = i; j < m_cols; j++)
         h[i][j] = phi_d2(i, j, sigma, x);
-    for(int i = 0; i < h.length; i++)
+    for(int i = 0; i < m_cols; i++)
       for(int j = 0; j < i; j++)
         h[i][j] = h[j][i];
 
@@ -87,7 +130,7 @@ public class QuadraticOptimizer {
     float p[] = gs_solver(h, d);
 
     // Iteration
-    for(int i = 0; i < x.length; i++)
+    for(int i = 0; i < m_cols; i++)
       x[i] = x[i] - (m_wolfe_gamma * p[i]);
 
         /*
@@ -102,14 +145,14 @@ public class QuadraticOptimizer {
   // Gauss-Seidel solver
   private float[] gs_solver(float[][] a, float[] b) {
     // Initial guess
-    float p[] = new float[b.length];
-    for(int i = 0; i < p.length; i++)
+    float p[] = m_p;
+    for(int i = 0; i < m_cols; i++)
       p[i] = 1.0f;
 
     for(int z = 0; z < m_gs_runs; z++) {
-      for(int i = 0; i < p.length; i++) {
+      for(int i = 0; i < m_cols; i++) {
         float s = 0.0f;
-        for(int j = 0; j < p.length; j++) {
+        for(int j = 0; j < m_cols; j++) {
           if(i != j)
             s += a[i][j] * p[j];
         }
@@ -123,9 +166,9 @@ public class QuadraticOptimizer {
 
   // Math
   private float dot(float[] a, float[] b) {
-    assert (a.length == b.length);
+    assert (a.length >= m_cols && b.length >= m_cols);
     float r = 0.0f;
-    for(int i = 0; i < a.length; i++)
+    for(int i = 0; i < m_cols; i++)
       r += a[i] * b[i];
     return r;
   }
@@ -138,14 +181,14 @@ public class QuadraticOptimizer {
   // Cost function phi(x)
   private float phi(float sigma, float[] x) {
     float r = 0.0f;
-    for(int i = 0; i < x.length; i++)
+    for(int i = 0; i < m_cols; i++)
       r += Math.pow(Math.min(0, dot(m_a[i], x) - m_b[i]), 2.0f);
     return f(x) + (sigma * r);
   }
 
   private float phi_d1(int n, float sigma, float[] x) {
     float r = 0.0f;
-    for(int i = 0; i < m_a.length; i++) {
+    for(int i = 0; i < m_rows; i++) {
       float c = dot(m_a[i], x) - m_b[i];
       if(c < 0)
         r += 2.0f * m_a[i][n] * c;
@@ -155,7 +198,7 @@ public class QuadraticOptimizer {
 
   private float phi_d2(int n, int m, float sigma, float[] x) {
     float r = 0.0f;
-    for(int i = 0; i < m_a.length; i++) {
+    for(int i = 0; i < m_rows; i++) {
       float c = dot(m_a[i], x) - m_b[i];
       if(c < 0)
         r += 2.0f * m_a[i][n] * m_a[i][m];
@@ -0,0 +1,221 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import java.util.Arrays;
+
+// Search index over base text and readings. Both are folded to hiragana and stored as one
+// stream, base text then readings, with a sorted posting list of every character bigram.
+// Matches in readings map back to the base text of their spans.
+class ReadingIndex {
+
+  // Stream separator, never part of a folded query
+  private static final char SEPARATOR = '\0';
+
+  // Folded stream
+  private char[] chars = new char[0];
+  private int length = 0;
+  private int baseLength = 0;
+
+  // Base range of every reading stream character
+  private int[] readingStart = new int[0];
+  private int[] readingEnd = new int[0];
+  private int readingLength = 0;
+
+  // Bigram postings, (bigram << 32 | position) with the sign flipped so signed order is
+  // unsigned order
+  private long[] grams = new long[0];
+  private int gramCount = 0;
+
+  // Match buffer
+  private long[] matches = new long[0];
+
+  // Start from base text
+  void reset(char[] normal, int normalLength) {
+    length = 0;
+    readingLength = 0;
+    gramCount = 0;
+    for (int i = 0; i < normalLength; i++) {
+      append(normal[i]);
+    }
+    append(SEPARATOR);
+    baseLength = normalLength;
+  }
+
+  // Reading of base range, or the base text itself when reading is empty
+  void addSpan(char[] normal, int start, int end, char[] reading, int readingFrom,
+      int readingTo) {
+    if (readingTo > readingFrom) {
+      for (int i = readingFrom; i < readingTo; i++) {
+        appendReading(reading[i], start, end);
+      }
+    } else {
+      for (int i = start; i < end; i++) {
+        appendReading(normal[i], i, i + 1);
+      }
+    }
+  }
+
+  // Sort postings
+  void build() {
+    append(SEPARATOR);
+    if (grams.length < length - 1) {
+      grams = new long[Math.max(length - 1, 2 * grams.length)];
+    }
+    gramCount = 0;
+    for (int i = 0; i + 1 < length; i++) {
+      grams[gramCount++] = gram(bigram(chars[i], chars[i + 1]), i);
+    }
+    Arrays.sort(grams, 0, gramCount);
+  }
+
+  // Base text ranges matching query as start and end pairs, sorted and without duplicates
+  int[] search(String query) {
+    // Queries containing the separator never match
+    int m = query.length();
+    for (int i = 0; i < m; i++) {
+      if (query.charAt(i) == SEPARATOR) {
+        return new int[0];
+      }
+    }
+    if (m == 0 || gramCount == 0) {
+      return new int[0];
+    }
+
+    // Rarest bigram of the query, or all bigrams starting with a single character
+    int bestFrom;
+    int bestTo;
+    int bestOffset = 0;
+    if (m == 1) {
+      long c = fold(query.charAt(0));
+      bestFrom = lowerBound(gram(c << 16, 0));
+      bestTo = upperBound(gram((c << 16) | 0xffffL, 0xffffffffL));
+    } else {
+      bestFrom = 0;
+      bestTo = gramCount + 1;
+      for (int j = 0; j + 1 < m; j++) {
+        long k = bigram(fold(query.charAt(j)), fold(query.charAt(j + 1)));
+        int from = lowerBound(gram(k, 0));
+        int to = upperBound(gram(k, 0xffffffffL));
+        if (to - from < bestTo - bestFrom) {
+          bestFrom = from;
+          bestTo = to;
+          bestOffset = j;
+        }
+      }
+    }
+
+    // Verify candidates
+    int count = 0;
+    for (int g = bestFrom; g < bestTo; g++) {
+      int p = (int) grams[g] - bestOffset;
+      if (p < 0 || p + m > length || !matches(query, p)) {
+        continue;
+      }
+
+      // Map to base text
+      int start;
+      int end;
+      if (p < baseLength) {
+        start = p;
+        end = p + m;
+      } else {
+        int q = p - baseLength - 1;
+        start = readingStart[q];
+        end = readingEnd[q + m - 1];
+      }
+      if (count == matches.length) {
+        matches = Arrays.copyOf(matches, Math.max(16, 2 * count));
+      }
+      matches[count++] = ((long) start << 32) | end;
+    }
+
+    // Sorted distinct ranges
+    Arrays.sort(matches, 0, count);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || matches[i] != matches[distinct - 1]) {
+        matches[distinct++] = matches[i];
+      }
+    }
+    int[] ranges = new int[2 * distinct];
+    for (int i = 0; i < distinct; i++) {
+      ranges[2 * i] = (int) (matches[i] >>> 32);
+      ranges[2 * i + 1] = (int) matches[i];
+    }
+    return ranges;
+  }
+
+  // Katakana to hiragana
+  static char fold(char c) {
+    if (c >= '\u30a1' && c <= '\u30f6') {
+      return (char) (c - 0x60);
+    }
+    return c;
+  }
+
+  // Stream
+  private void append(char c) {
+    if (chars.length == length) {
+      chars = Arrays.copyOf(chars, Math.max(64, 2 * length));
+    }
+    chars[length++] = fold(c);
+  }
+
+  private void appendReading(char c, int start, int end) {
+    if (readingStart.length == readingLength) {
+      readingStart = Arrays.copyOf(readingStart, Math.max(64, 2 * readingLength));
+      readingEnd = Arrays.copyOf(readingEnd, readingStart.length);
+    }
+    readingStart[readingLength] = start;
+    readingEnd[readingLength] = end;
+    readingLength++;
+    append(c);
+  }
+
+  private boolean matches(String query, int p) {
+    for (int i = 0; i < query.length(); i++) {
+      if (chars[p + i] != fold(query.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Postings
+  private static long bigram(long a, long b) {
+    return (a << 16) | b;
+  }
+
+  private static long gram(long bigram, long position) {
+    return ((bigram << 32) | position) ^ Long.MIN_VALUE;
+  }
+
+  // First posting not less than value
+  private int lowerBound(long value) {
+    int lo = 0;
+    int hi = gramCount;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (grams[mid] < value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // First posting greater than value
+  private int upperBound(long value) {
+    int lo = 0;
+    int hi = gramCount;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (grams[mid] <= value) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
@@ -0,0 +1,102 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import java.util.Arrays;
+
+// Places the readings of a line as close as possible to their ideal centers, without overlap
+// and inside the line, with the quadratic optimizer or a quick left to right approximation
+class ReadingPlacer {
+
+  // Optimizer and its constraint buffers, shared by all lines
+  private final QuadraticOptimizer optimizer = new QuadraticOptimizer();
+  private float[] b = new float[0];
+  private float[][] a = new float[0][0];
+
+  int iterations() {
+    return optimizer.iterations();
+  }
+
+  // Optimize the shifts x of n readings from their centers, resuming at iteration with the x
+  // of the previous call; offsets are written once done. Returns the next iteration, or
+  // iterations() when done.
+  int place(float[] centers, float[] widths, int n, float lineMax, float[] x, int iteration,
+      boolean limited, long deadline, float[] offsets) {
+    // Buffers
+    if (a.length < n + 1) {
+      b = new float[n + 1];
+      a = new float[n + 1][n];
+    }
+    float[] r = centers;
+
+    // a[] - constraint matrix
+    int rows = n + 1;
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < n; j++) {
+        a[i][j] = 0.0f;
+      }
+    }
+    a[0][0] = 1.0f;
+    for (int i = 1; i < rows - 2; i++) {
+      a[i][i - 1] = -1.0f;
+      a[i][i] = 1.0f;
+    }
+    a[rows - 1][n - 1] = -1.0f;
+
+    // b[] - constraint vector
+    Arrays.fill(b, 0, rows, 0.0f);
+    b[0] = -r[0] + (0.5f * widths[0]);
+    for (int i = 1; i < rows - 2; i++) {
+      b[i] = (0.5f * (widths[i] + widths[i - 1])) + (r[i - 1] - r[i]);
+    }
+    b[rows - 1] = -lineMax + r[n - 1] + (0.5f * widths[n - 1]);
+
+    // Calculate constraint optimization, resuming a previous partial run
+    if (iteration == 0) {
+      for (int i = 0; i < n; i++) {
+        x[i] = 0.0f;
+      }
+    }
+    optimizer.set(a, b, rows, n);
+    if (limited) {
+      iteration = optimizer.calculate(x, iteration, deadline);
+      if (iteration < optimizer.iterations()) {
+        return iteration;
+      }
+    } else {
+      optimizer.calculate(x, iteration);
+    }
+    for (int i = 0; i < n; i++) {
+      offsets[i] = x[i] + r[i];
+    }
+    return optimizer.iterations();
+  }
+
+  // Left to right overlap resolution, then pulled back from the line end
+  static void approximate(float[] centers, float[] widths, int n, float lineMax,
+      float[] offsets) {
+    // Push right past the previous reading
+    float edge = 0.0f;
+    float total = 0.0f;
+    for (int i = 0; i < n; i++) {
+      float half = 0.5f * widths[i];
+      offsets[i] = Math.max(centers[i], edge + half);
+      edge = offsets[i] + half;
+      total += widths[i];
+    }
+
+    // Readings wider than the line keep the left to right result, pulling them back would
+    // stack them at the line start
+    if (total > lineMax) {
+      return;
+    }
+
+    // Push left before the next reading, but not past the readings packed from the line start
+    edge = lineMax;
+    float left = total;
+    for (int i = n - 1; i >= 0; i--) {
+      float half = 0.5f * widths[i];
+      left -= widths[i];
+      offsets[i] = Math.max(Math.min(offsets[i], edge - half), left + half);
+      edge = offsets[i] - half;
+    }
+  }
+}
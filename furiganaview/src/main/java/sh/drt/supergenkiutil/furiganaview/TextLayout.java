@@ -0,0 +1,774 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+// Spans, style runs and lines of parsed markup, measured through measurers and reused through
+// pools. Highlight ranges carry a style of type S that runs hand back for drawing.
+class TextLayout<S> {
+
+  // Markup, measurers and the character widths, measured by the line breaker as lines reach
+  // them; spans before measuredSpans have their readings measured and runs styled
+  final Markup markup = new Markup();
+  final LineBreaker lineBreaker = new LineBreaker();
+  private Measurer normalMeasurer;
+  private Measurer furiganaMeasurer;
+  private float[] normalWidths = new float[0];
+  private int measuredSpans = 0;
+
+  // Sizes
+  float lineMax = 0.0f;
+  float ellipsisX = -1.0f;
+
+  // Spans and lines
+  private Vector<Span> spanVector = new Vector<>();
+  private Vector<LineNormal> lineNormalVector = new Vector<>();
+  private Vector<LineFurigana> lineFuriganaVector = new Vector<>();
+  private int placedLines = 0;
+
+  // Pools, reused across texts
+  private Vector<Span> spanPool = new Vector<>();
+  private Vector<TextNormal> textNormalPool = new Vector<>();
+  private Vector<TextFurigana> textFuriganaPool = new Vector<>();
+  private Vector<LineNormal> lineNormalPool = new Vector<>();
+  private Vector<LineFurigana> lineFuriganaPool = new Vector<>();
+  private Vector<TextNormal> partVector = new Vector<>();
+
+  // Highlight ranges
+  final HighlightIndex<S> highlights = new HighlightIndex<>();
+  private Vector<HighlightIndex.Range<S>> highlightQuery = new Vector<>();
+
+  // Furigana placement and its scratch buffers
+  private ReadingPlacer readingPlacer = new ReadingPlacer();
+  private float[] placeCenters = new float[0];
+  private float[] placeWidths = new float[0];
+
+  // Furigana placement time per frame, 0 for no limit, and its counters
+  long placementBudgetNanos = 0;
+  int placementFallbackCount = 0;
+  private boolean placementStarted = false;
+  private long placementDeadline = 0;
+
+  // Measurers
+  TextLayout(Measurer normalMeasurer, Measurer furiganaMeasurer) {
+    this.normalMeasurer = normalMeasurer;
+    this.furiganaMeasurer = furiganaMeasurer;
+  }
+
+  // Parse text into spans
+  void parse(String text) {
+    // Recycle lines and spans
+    releaseLines();
+    releaseSpans();
+
+    // Spannify text
+    markup.parse(text);
+    for (int i = 0; i < markup.spanCount(); i++) {
+      spanVector.add(obtainSpan().set(markup.normalStart(i), markup.normalEnd(i),
+          markup.furiganaStart(i), markup.furiganaEnd(i)));
+    }
+  }
+
+  // Drop measurements, characters and spans are measured again as lines reach them
+  void measure() {
+    releaseLines();
+    lineBreaker.setMarkup(markup, normalMeasurer);
+    normalWidths = lineBreaker.widths();
+    measuredSpans = 0;
+  }
+
+  // Build lines between recorded line ends
+  boolean buildLines(int[] breaks, int lineCount) {
+    for (int k = 0; k < lineCount; k++) {
+      int startSpan = breaks[2 * k];
+      int startOffset = breaks[2 * k + 1];
+      int endSpan = breaks[2 * k + 2];
+      int endOffset = breaks[2 * k + 3];
+      if (startSpan > endSpan || endSpan > spanVector.size()) {
+        return false;
+      }
+      measureSpans(endSpan + 1);
+
+      // Commit first so a failed rebuild is released with the other lines
+      LineNormal lineNormal = obtainLineNormal();
+      LineFurigana lineFurigana = obtainLineFurigana();
+      lineNormalVector.add(lineNormal);
+      lineFuriganaVector.add(lineFurigana);
+
+      // Spans
+      float x = 0.0f;
+      for (int s = startSpan; s <= endSpan && s < spanVector.size(); s++) {
+        Span span = spanVector.get(s);
+        int length = span.end() - span.start();
+        int from = (s == startSpan) ? startOffset : 0;
+        int to = (s == endSpan) ? endOffset : length;
+        if (s == endSpan && to == 0) {
+          break;
+        }
+        if (from < 0 || from > to || to > length) {
+          return false;
+        }
+
+        if (from == 0 && to == length) {
+          // Whole span
+          lineNormal.add(span.normal());
+          lineFurigana.add(span.furigana(x));
+          x += span.widthTotal();
+        } else {
+          // Part of a span without furigana
+          if (span.furigana() != null) {
+            return false;
+          }
+          TextNormal part = obtainTextNormal().set(span.start() + from, span.start() + to, true);
+          part.style();
+          partVector.clear();
+          partVector.add(part);
+          lineNormal.add(partVector);
+          x += part.width();
+        }
+      }
+
+      // Nothing to place
+      if (lineFurigana.size() == 0) {
+        lineFurigana.setCalculated();
+      }
+    }
+    return true;
+  }
+
+  // Measure readings and style runs of spans before end, widths come from the line breaker
+  private void measureSpans(int end) {
+    end = Math.min(end, spanVector.size());
+    for (; measuredSpans < end; measuredSpans++) {
+      spanVector.get(measuredSpans).measure();
+    }
+  }
+
+  // Style runs overlapping a character range again after its highlight ranges changed
+  void restyle(int start, int end) {
+    // Spans
+    for (int i = firstSpan(start); i < spanVector.size(); i++) {
+      Span span = spanVector.get(i);
+      if (span.start() >= end) {
+        break;
+      }
+      span.restyle(start, end);
+    }
+
+    // Lines hold split parts of spans
+    for (int i = firstLine(start); i < lineNormalVector.size(); i++) {
+      LineNormal line = lineNormalVector.get(i);
+      if (line.start() >= end) {
+        break;
+      }
+      line.restyle(start, end);
+    }
+  }
+
+  // Start of a frame, the placement budget starts with its first line to place
+  void startFrame() {
+    placementStarted = false;
+  }
+
+  // Spans
+  int spanCount() {
+    return spanVector.size();
+  }
+
+  Span span(int i) {
+    return spanVector.get(i);
+  }
+
+  // First span ending after offset
+  int firstSpan(int offset) {
+    int lo = 0;
+    int hi = spanVector.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (spanVector.get(mid).end() <= offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // Lines
+  int lineCount() {
+    return lineNormalVector.size();
+  }
+
+  LineNormal lineNormal(int i) {
+    return lineNormalVector.get(i);
+  }
+
+  LineFurigana lineFurigana(int i) {
+    return lineFuriganaVector.get(i);
+  }
+
+  // Whether the final furigana placement of every line is done
+  boolean placed() {
+    return placedLines == lineFuriganaVector.size();
+  }
+
+  // First line ending after offset
+  int firstLine(int offset) {
+    int lo = 0;
+    int hi = lineNormalVector.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (lineNormalVector.get(mid).end() <= offset) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // Pools
+  private Span obtainSpan() {
+    return spanPool.size() > 0 ? spanPool.remove(spanPool.size() - 1) : new Span();
+  }
+
+  private TextNormal obtainTextNormal() {
+    return textNormalPool.size() > 0 ? textNormalPool.remove(textNormalPool.size() - 1)
+        : new TextNormal();
+  }
+
+  private TextFurigana obtainTextFurigana() {
+    return textFuriganaPool.size() > 0 ? textFuriganaPool.remove(textFuriganaPool.size() - 1)
+        : new TextFurigana();
+  }
+
+  private LineNormal obtainLineNormal() {
+    return lineNormalPool.size() > 0 ? lineNormalPool.remove(lineNormalPool.size() - 1)
+        : new LineNormal();
+  }
+
+  private LineFurigana obtainLineFurigana() {
+    return lineFuriganaPool.size() > 0 ? lineFuriganaPool.remove(lineFuriganaPool.size() - 1)
+        : new LineFurigana();
+  }
+
+  void releaseSpans() {
+    for (int i = 0; i < spanVector.size(); i++) {
+      Span span = spanVector.get(i);
+      span.release();
+      spanPool.add(span);
+    }
+    spanVector.clear();
+    measuredSpans = 0;
+    markup.clear();
+  }
+
+  void releaseLines() {
+    for (int i = 0; i < lineNormalVector.size(); i++) {
+      releaseLineNormal(lineNormalVector.get(i));
+    }
+    for (int i = 0; i < lineFuriganaVector.size(); i++) {
+      releaseLineFurigana(lineFuriganaVector.get(i));
+    }
+    lineNormalVector.clear();
+    lineFuriganaVector.clear();
+    placedLines = 0;
+  }
+
+  private void releaseLineNormal(LineNormal line) {
+    line.release();
+    lineNormalPool.add(line);
+  }
+
+  private void releaseLineFurigana(LineFurigana line) {
+    line.release();
+    lineFuriganaPool.add(line);
+  }
+
+  private void releaseTextNormal(TextNormal text) {
+    textNormalPool.add(text);
+  }
+
+  // classes
+  class TextFurigana {
+
+    // Info
+    private int start;
+    private int end;
+    private String text;
+
+    // Coordinates
+    float offset;
+    float width;
+
+    // Set
+    TextFurigana set(int start, int end) {
+      // Info
+      this.start = start;
+      this.end = end;
+      this.text = null;
+      return this;
+    }
+
+    void measure() {
+      // Coordinates
+      this.width = furiganaMeasurer.measureText(markup.furiganaChars, start, end - start);
+    }
+
+    // Info
+    int start() {
+      return start;
+    }
+
+    int end() {
+      return end;
+    }
+
+    String text() {
+      if (this.text == null) {
+        this.text = new String(markup.furiganaChars, start, end - start);
+      }
+      return this.text;
+    }
+
+    // Coordinates
+    float getOffset() {
+      return this.offset;
+    }
+
+    void setOffset(float value) {
+      this.offset = value;
+    }
+
+    float width() {
+      return this.width;
+    }
+  }
+
+  class TextNormal {
+
+    // Info
+    private int start;
+    private int end;
+    private boolean split;
+
+    // Style runs relative to start, none when drawn with the normal style only
+    private int[] runBounds = new int[2];
+    private Object[] runStyles = new Object[1];
+    private int runCount = 0;
+
+    // Set
+    TextNormal set(int start, int end, boolean split) {
+      // Info
+      this.start = start;
+      this.end = end;
+      this.split = split;
+      this.runCount = 0;
+      return this;
+    }
+
+    // Split into runs by overlapping highlight ranges
+    void style() {
+      // Reset
+      runCount = 0;
+
+      // Query ranges
+      highlightQuery.clear();
+      highlights.query(start(), end(), highlightQuery);
+      if (highlightQuery.size() == 0) {
+        return;
+      }
+
+      // Run boundaries
+      int n = 2 * highlightQuery.size() + 2;
+      if (runBounds.length < n) {
+        runBounds = new int[n];
+        runStyles = new Object[n - 1];
+      }
+      n = 0;
+      runBounds[n++] = 0;
+      runBounds[n++] = length();
+      for (int i = 0; i < highlightQuery.size(); i++) {
+        HighlightIndex.Range<S> range = highlightQuery.get(i);
+        runBounds[n++] = Math.max(0, range.start - start);
+        runBounds[n++] = Math.min(length(), range.end - start);
+      }
+      Arrays.sort(runBounds, 0, n);
+      int count = 0;
+      for (int i = 0; i < n; i++) {
+        if (count == 0 || runBounds[i] != runBounds[count - 1]) {
+          runBounds[count++] = runBounds[i];
+        }
+      }
+      runCount = count - 1;
+
+      // Run styles, latest range wins
+      for (int i = 0; i < runCount; i++) {
+        int offset = start + runBounds[i];
+        int best = 0;
+        runStyles[i] = null;
+        for (int j = 0; j < highlightQuery.size(); j++) {
+          HighlightIndex.Range<S> range = highlightQuery.get(j);
+          if (range.start <= offset && range.end > offset && range.id > best) {
+            best = range.id;
+            runStyles[i] = range.value;
+          }
+        }
+      }
+    }
+
+    // Info
+    int length() {
+      return end - start;
+    }
+
+    int start() {
+      return start;
+    }
+
+    int end() {
+      return end;
+    }
+
+    boolean isSplit() {
+      return split;
+    }
+
+    // Runs, none when drawn with the normal style only
+    int runCount() {
+      return runCount;
+    }
+
+    int runStart(int i) {
+      return start + runBounds[i];
+    }
+
+    int runEnd(int i) {
+      return start + runBounds[i + 1];
+    }
+
+    // Style of the latest range covering a run, null for the normal style
+    @SuppressWarnings("unchecked")
+    S runStyle(int i) {
+      return (S) runStyles[i];
+    }
+
+    // Width, from the line breaker's prefix sums
+    float width() {
+      return lineBreaker.width(start, end);
+    }
+
+    float width(int from, int to) {
+      return lineBreaker.width(from, to);
+    }
+  }
+
+  class LineFurigana {
+
+    // Text
+    private Vector<TextFurigana> textFuriganaVector = new Vector<>();
+    private float[] offsets = new float[0];
+    private boolean calculated = false;
+
+    // Optimizer state of a placement spread over several frames
+    private float[] work = new float[0];
+    private int iteration = 0;
+    private boolean approximate = false;
+
+    // Add
+    void add(TextFurigana text) {
+      if (text != null) {
+        this.textFuriganaVector.add(text);
+      }
+    }
+
+    // Elements
+    int size() {
+      return this.textFuriganaVector.size();
+    }
+
+    TextFurigana get(int i) {
+      return this.textFuriganaVector.get(i);
+    }
+
+    // Placed center of a reading
+    float offset(int i) {
+      return this.offsets[i];
+    }
+
+    // Offsets, copied from or to a cached layout once placed
+    void setOffsets(float[] values, int from) {
+      int n = this.textFuriganaVector.size();
+      if (this.offsets.length < n) {
+        this.offsets = new float[n];
+      }
+      System.arraycopy(values, from, this.offsets, 0, n);
+      setCalculated();
+    }
+
+    int getOffsets(float[] values, int from) {
+      int n = this.textFuriganaVector.size();
+      System.arraycopy(this.offsets, 0, values, from, n);
+      return from + n;
+    }
+
+    // Release, texts are owned by spans
+    void release() {
+      this.textFuriganaVector.clear();
+      this.calculated = false;
+      this.approximate = false;
+      this.iteration = 0;
+    }
+
+    // Place readings, optionally only within the frame budget; lines that run out of time show
+    // an approximate placement and resume from where they stopped on a later call. Returns
+    // whether the final placement is done.
+    boolean place(boolean limited) {
+      // Check size
+      int n = this.textFuriganaVector.size();
+      if (this.calculated || n == 0) {
+        setCalculated();
+        return true;
+      }
+      if (this.offsets.length < n) {
+        this.offsets = new float[n];
+      }
+      if (this.work.length < n) {
+        this.work = new float[n];
+      }
+
+      // Ideal centers and widths
+      collect(n);
+
+      // Budget starts with the first placement of the frame, which always runs at least one
+      // iteration so every frame makes progress
+      if (limited) {
+        if (!placementStarted) {
+          placementStarted = true;
+          placementDeadline = System.nanoTime() + placementBudgetNanos;
+        } else if (System.nanoTime() - placementDeadline >= 0) {
+          approximate(n);
+          return false;
+        }
+      }
+
+      // Calculate constraint optimization, resuming a previous partial run
+      this.iteration = readingPlacer.place(placeCenters, placeWidths, n, lineMax, this.work,
+          this.iteration, limited, placementDeadline, this.offsets);
+      if (this.iteration < readingPlacer.iterations()) {
+        approximate(n);
+        return false;
+      }
+      setCalculated();
+      return true;
+    }
+
+    private void setCalculated() {
+      if (!this.calculated) {
+        this.calculated = true;
+        placedLines++;
+      }
+    }
+
+    // Scratch buffers shared by all lines
+    private void collect(int n) {
+      if (placeCenters.length < n) {
+        placeCenters = new float[n];
+        placeWidths = new float[n];
+      }
+      for (int i = 0; i < n; i++) {
+        TextFurigana text = this.textFuriganaVector.get(i);
+        placeCenters[i] = text.getOffset();
+        placeWidths[i] = text.width();
+      }
+    }
+
+    // Quick placement until the optimizer is done
+    private void approximate(int n) {
+      if (this.approximate) {
+        return;
+      }
+      this.approximate = true;
+      placementFallbackCount++;
+      ReadingPlacer.approximate(placeCenters, placeWidths, n, lineMax, this.offsets);
+    }
+  }
+
+  class LineNormal {
+
+    // Text
+    private Vector<TextNormal> textNormalVector = new Vector<>();
+
+    // Character range
+    private int start = -1;
+    private int end = -1;
+
+    // Character positions
+    private float[] prefix = new float[1];
+    private boolean prefixValid = false;
+
+    // Elements
+    int size() {
+      return this.textNormalVector.size();
+    }
+
+    TextNormal get(int i) {
+      return this.textNormalVector.get(i);
+    }
+
+    int start() {
+      return start;
+    }
+
+    int end() {
+      return end;
+    }
+
+    // Width
+    float width() {
+      return prefix()[end - start];
+    }
+
+    // Positions of the character boundaries, built on first use
+    float[] prefix() {
+      if (!prefixValid) {
+        if (prefix.length < end - start + 1) {
+          prefix = new float[end - start + 1];
+        }
+        lineBreaker.measureTo(end);
+        for (int i = start; i < end; i++) {
+          prefix[i - start + 1] = prefix[i - start] + normalWidths[i];
+        }
+        prefixValid = true;
+      }
+      return prefix;
+    }
+
+    void add(Vector<TextNormal> text) {
+      this.prefixValid = false;
+      for (int i = 0; i < text.size(); i++) {
+        TextNormal normal = text.get(i);
+        this.textNormalVector.add(normal);
+        if (start < 0 || normal.start() < start) {
+          start = normal.start();
+        }
+        end = Math.max(end, normal.end());
+      }
+    }
+
+    // Release, parts of spans are owned by the line
+    void release() {
+      for (int i = 0; i < this.textNormalVector.size(); i++) {
+        TextNormal normal = this.textNormalVector.get(i);
+        if (normal.isSplit()) {
+          releaseTextNormal(normal);
+        }
+      }
+      this.textNormalVector.clear();
+      this.start = -1;
+      this.end = -1;
+      this.prefixValid = false;
+    }
+
+    // Style
+    void restyle(int start, int end) {
+      for (int i = 0; i < this.textNormalVector.size(); i++) {
+        TextNormal normal = this.textNormalVector.get(i);
+        if (normal.start() < end && normal.end() > start) {
+          normal.style();
+        }
+      }
+    }
+  }
+
+  class Span {
+
+    // Text
+    private String text = null;
+    private TextFurigana textFurigana = null;
+    private Vector<TextNormal> textNormalVector = new Vector<>();
+
+    // Set from text buffer ranges
+    Span set(int normalStart, int normalEnd, int furiganaStart, int furiganaEnd) {
+      // Furigana text
+      if (furiganaEnd > furiganaStart) {
+        textFurigana = obtainTextFurigana().set(furiganaStart, furiganaEnd);
+      }
+
+      // Normal text; highlight is applied when drawing
+      textNormalVector.add(obtainTextNormal().set(normalStart, normalEnd, false));
+      return this;
+    }
+
+    // Measure reading and style runs
+    void measure() {
+      if (textFurigana != null) {
+        textFurigana.measure();
+      }
+      for (int i = 0; i < textNormalVector.size(); i++) {
+        textNormalVector.get(i).style();
+      }
+    }
+
+    // Release
+    void release() {
+      for (int i = 0; i < textNormalVector.size(); i++) {
+        releaseTextNormal(textNormalVector.get(i));
+      }
+      if (textFurigana != null) {
+        textFuriganaPool.add(textFurigana);
+      }
+      textNormalVector.clear();
+      textFurigana = null;
+      text = null;
+    }
+
+    // Text
+    TextFurigana furigana(float x) {
+      if (textFurigana == null) {
+        return null;
+      }
+      textFurigana.setOffset(x + (widthTotal() / 2.0f));
+      return textFurigana;
+    }
+
+    Vector<TextNormal> normal() {
+      return textNormalVector;
+    }
+
+    String text() {
+      if (text == null) {
+        text = new String(markup.normalChars, start(), end() - start());
+      }
+      return text;
+    }
+
+    TextFurigana furigana() {
+      return textFurigana;
+    }
+
+    // Character range
+    int start() {
+      return textNormalVector.get(0).start();
+    }
+
+    int end() {
+      return textNormalVector.get(textNormalVector.size() - 1).end();
+    }
+
+    // Style
+    void restyle(int start, int end) {
+      for (int i = 0; i < textNormalVector.size(); i++) {
+        TextNormal normal = textNormalVector.get(i);
+        if (normal.start() < end && normal.end() > start) {
+          normal.style();
+        }
+      }
+    }
+
+    // Width, from the line breaker's prefix sums
+    float widthTotal() {
+      return lineBreaker.width(start(), end());
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+// Steady state allocation of the layout hot paths, measured per call on the test thread after
+// warm up. Budgets are a function of input size; with no per unit allowance, a change that
+// allocates per glyph, span, line or optimizer iteration fails at the larger sizes.
+public class AllocationBudgetTest {
+
+  // Input sizes
+  private static final int[] SPAN_COUNTS = {1, 16, 256, 4096};
+  private static final int[] READING_COUNTS = {1, 4, 16};
+
+  // Budgets
+  private static final long BASE_BYTES = 64;
+  private static final long UNIT_BYTES = 0;
+
+  // Warm up and measured runs, fewer for larger inputs
+  private static final int RUN_UNITS = 1024;
+  private static final int MIN_RUNS = 8;
+
+  // Fake measurers, base characters are 20 wide or 10 for ASCII, readings half size
+  private static final float WIDE = 20.0f;
+  private static final float NARROW = 10.0f;
+  private static final float LINE_WIDTH = 300.0f;
+
+  private static final Measurer NORMAL = new FakeMeasurer(1.0f);
+  private static final Measurer FURIGANA = new FakeMeasurer(0.5f);
+
+  private com.sun.management.ThreadMXBean threads;
+
+  private interface Call {
+
+    void run();
+  }
+
+  @Before
+  public void setUp() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    threads = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  @Test
+  public void readingPlacement() {
+    for (final int n : READING_COUNTS) {
+      // Readings twice as wide as their base text, so every constraint is active
+      final float[] centers = new float[n];
+      final float[] widths = new float[n];
+      for (int i = 0; i < n; i++) {
+        centers[i] = WIDE * (i + 0.5f);
+        widths[i] = 2.0f * WIDE;
+      }
+
+      final ReadingPlacer placer = new ReadingPlacer();
+      final float[] x = new float[n];
+      final float[] offsets = new float[n];
+      assertBudget("ReadingPlacer.place", n, new Call() {
+        @Override
+        public void run() {
+          placer.place(centers, widths, n, WIDE * n, x, 0, false, 0L, offsets);
+        }
+      });
+    }
+  }
+
+  @Test
+  public void markupParse() {
+    for (int spans : SPAN_COUNTS) {
+      final String text = text(spans);
+      final Markup markup = new Markup();
+      assertBudget("Markup.parse", spans, new Call() {
+        @Override
+        public void run() {
+          markup.parse(text);
+        }
+      });
+      assertTrue(markup.spanCount() >= spans);
+    }
+  }
+
+  @Test
+  public void layoutCycle() {
+    for (int spans : SPAN_COUNTS) {
+      final String text = text(spans);
+      final TextLayout<Object> layout = new TextLayout<>(NORMAL, FURIGANA);
+      layout.highlights.add(3, 5 * spans, "highlight");
+      assertBudget("layout cycle", spans, new Call() {
+        @Override
+        public void run() {
+          layoutCycle(layout, text);
+        }
+      });
+      assertTrue(layout.lineCount() > 0 && layout.lineBreaker.complete());
+    }
+  }
+
+  // Parse, measure, break and build lines, then place readings and walk the runs of every line
+  // as drawing does
+  private static void layoutCycle(TextLayout<Object> layout, String text) {
+    layout.parse(text);
+    layout.measure();
+    LineBreaker breaker = layout.lineBreaker;
+    breaker.rules = LineBreakRules.JAPANESE;
+    breaker.breakLines(LINE_WIDTH, 0.0f);
+    layout.buildLines(breaker.breaks, breaker.lineCount());
+    for (int k = 0; k < layout.lineCount(); k++) {
+      layout.lineFurigana(k).place(false);
+      TextLayout<Object>.LineNormal line = layout.lineNormal(k);
+      line.prefix();
+      for (int i = 0; i < line.size(); i++) {
+        TextLayout<Object>.TextNormal normal = line.get(i);
+        for (int r = 0; r < normal.runCount(); r++) {
+          normal.width(normal.runStart(r), normal.runEnd(r));
+          normal.runStyle(r);
+        }
+      }
+    }
+  }
+
+  // Base characters are 20 wide or 10 for ASCII, times scale
+  private static class FakeMeasurer implements Measurer {
+
+    private final float scale;
+
+    FakeMeasurer(float scale) {
+      this.scale = scale;
+    }
+
+    @Override
+    public void getTextWidths(char[] chars, int start, int count, float[] widths,
+        int widthsStart) {
+      for (int i = 0; i < count; i++) {
+        widths[widthsStart + i] = scale * (chars[start + i] < 0x80 ? NARROW : WIDE);
+      }
+    }
+
+    @Override
+    public float measureText(char[] chars, int start, int count) {
+      float width = 0.0f;
+      for (int i = start; i < start + count; i++) {
+        width += scale * (chars[i] < 0x80 ? NARROW : WIDE);
+      }
+      return width;
+    }
+  }
+
+  // Markup of the given number of spans, alternating readings and plain text
+  private static String text(int spans) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < spans; i++) {
+      switch (i % 4) {
+        case 0:
+          text.append("{宇宙飛行士;うちゅうひこうし}");
+          break;
+        case 1:
+          text.append("はロケットで、");
+          break;
+        case 2:
+          text.append("{宇;う}{宙;ちゅう}");
+          break;
+        default:
+          text.append("に行った。abc ");
+          break;
+      }
+    }
+    return text.toString();
+  }
+
+  private void assertBudget(String name, int size, Call call) {
+    int runs = Math.max(MIN_RUNS, RUN_UNITS / size);
+    for (int i = 0; i < runs; i++) {
+      call.run();
+    }
+    // Median of single runs, so one off allocations by the runtime do not count
+    long thread = Thread.currentThread().getId();
+    long[] bytes = new long[runs];
+    for (int i = 0; i < runs; i++) {
+      long before = threads.getThreadAllocatedBytes(thread);
+      call.run();
+      bytes[i] = threads.getThreadAllocatedBytes(thread) - before;
+    }
+    Arrays.sort(bytes);
+    long perCall = bytes[runs / 2];
+    long budget = BASE_BYTES + UNIT_BYTES * size;
+    assertTrue(name + " of size " + size + " allocated " + perCall + " bytes per call, budget "
+        + budget, perCall <= budget);
+  }
+}
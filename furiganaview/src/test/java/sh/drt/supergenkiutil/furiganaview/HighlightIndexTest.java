@@ -0,0 +1,94 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+// Overlap queries against a brute force scan of all ranges
+public class HighlightIndexTest {
+
+  private static final int TEXT_LENGTH = 200;
+
+  @Test
+  public void queryMatchesBruteForce() {
+    Random random = new Random(27);
+    HighlightIndex<Integer> index = new HighlightIndex<>();
+
+    // Ranges as (id, start, end), in the order they were added
+    List<int[]> all = new ArrayList<>();
+    for (int round = 0; round < 50; round++) {
+      // Add or remove some ranges, short and long ones
+      for (int i = 0; i < 10; i++) {
+        if (!all.isEmpty() && random.nextInt(4) == 0) {
+          int[] range = all.remove(random.nextInt(all.size()));
+          assertNotNull(index.remove(range[0]));
+        } else {
+          int start = random.nextInt(TEXT_LENGTH);
+          int end = start + 1 + random.nextInt(random.nextBoolean() ? 5 : TEXT_LENGTH);
+          all.add(new int[]{index.add(start, end, round), start, end});
+        }
+      }
+      assertEquals(all.size(), index.size());
+
+      // Queries, empty ones and ones outside the text included
+      for (int i = 0; i < 20; i++) {
+        int start = random.nextInt(TEXT_LENGTH + 10) - 5;
+        int end = start + random.nextInt(20);
+        assertEquals(bruteForce(all, start, end), query(index, start, end));
+      }
+    }
+  }
+
+  @Test
+  public void coveredCharacters() {
+    HighlightIndex<Integer> index = new HighlightIndex<>();
+    assertEquals(0, index.start());
+    assertEquals(0, index.end());
+    index.add(10, 20, 0);
+    int id = index.add(3, 40, 0);
+    index.add(30, 35, 0);
+    assertEquals(3, index.start());
+    assertEquals(40, index.end());
+    index.remove(id);
+    assertEquals(10, index.start());
+    assertEquals(35, index.end());
+  }
+
+  // Ids of the ranges overlapping [start, end), in the order returned
+  private static List<Integer> query(HighlightIndex<Integer> index, int start, int end) {
+    List<HighlightIndex.Range<Integer>> out = new ArrayList<>();
+    index.query(start, end, out);
+    List<Integer> ids = new ArrayList<>();
+    for (HighlightIndex.Range<Integer> range : out) {
+      ids.add(range.id);
+    }
+    return ids;
+  }
+
+  // Ids of the ranges overlapping [start, end), in start order with ties by id
+  private static List<Integer> bruteForce(List<int[]> all, int start, int end) {
+    List<int[]> overlapping = new ArrayList<>();
+    for (int[] range : all) {
+      if (start < end && range[1] < end && range[2] > start) {
+        overlapping.add(range);
+      }
+    }
+    Collections.sort(overlapping, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] a, int[] b) {
+        return a[1] != b[1] ? Integer.compare(a[1], b[1]) : Integer.compare(a[0], b[0]);
+      }
+    });
+    List<Integer> ids = new ArrayList<>();
+    for (int[] range : overlapping) {
+      ids.add(range[0]);
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,184 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Test;
+
+// Records kept across reopening, and dropped on font changes, size limits and corruption
+public class LayoutCacheTest {
+
+  private static final String FONT = "font";
+
+  @Test
+  public void roundTrip() throws IOException {
+    File path = tempFile();
+    LayoutCache cache = new LayoutCache(path, FONT);
+    cache.put(1L, entry(3, 2));
+    cache.put(2L, entry(1, 0));
+
+    LayoutCache.Entry entry = new LayoutCache.Entry();
+    assertTrue(cache.get(1L, entry));
+    assertEntry(entry(3, 2), entry);
+    assertTrue(cache.get(2L, entry));
+    assertEntry(entry(1, 0), entry);
+    assertFalse(cache.get(3L, entry));
+    cache.close();
+  }
+
+  @Test
+  public void readingsStoredAfterLines() throws IOException {
+    File path = tempFile();
+    LayoutCache cache = new LayoutCache(path, FONT);
+    LayoutCache.Entry stored = entry(3, 2);
+    stored.readingCount = -1;
+    cache.put(1L, stored);
+
+    // Lines without readings
+    LayoutCache.Entry entry = new LayoutCache.Entry();
+    assertTrue(cache.get(1L, entry));
+    assertEntry(stored, entry);
+
+    // Readings once placed
+    cache.put(1L, entry(3, 2));
+    assertTrue(cache.get(1L, entry));
+    assertEntry(entry(3, 2), entry);
+    cache.close();
+  }
+
+  @Test
+  public void reopenKeepsRecords() throws IOException {
+    File path = tempFile();
+    LayoutCache cache = new LayoutCache(path, FONT);
+    cache.put(1L, entry(3, 2));
+    cache.close();
+
+    cache = new LayoutCache(path, FONT);
+    LayoutCache.Entry entry = new LayoutCache.Entry();
+    assertTrue(cache.get(1L, entry));
+    assertEntry(entry(3, 2), entry);
+    cache.close();
+  }
+
+  @Test
+  public void fingerprintChangeResets() throws IOException {
+    File path = tempFile();
+    LayoutCache cache = new LayoutCache(path, FONT);
+    cache.put(1L, entry(3, 2));
+    cache.close();
+
+    cache = new LayoutCache(path, "other font");
+    assertFalse(cache.get(1L, new LayoutCache.Entry()));
+    cache.close();
+  }
+
+  @Test
+  public void sizeLimitResets() throws IOException {
+    File path = tempFile();
+    LayoutCache cache = new LayoutCache(path, FONT, 4096);
+    LayoutCache.Entry entry = entry(20, 20);
+    long size = 2 * LayoutCache.RECORD_HEADER_SIZE + LayoutCache.linesSize(20)
+        + LayoutCache.readingsSize(20);
+    int records = (int) (4096 / size) + 1;
+    for (int i = 0; i < records; i++) {
+      cache.put(i, entry);
+    }
+    assertFalse(cache.get(0L, new LayoutCache.Entry()));
+    assertTrue(cache.get(records - 1, new LayoutCache.Entry()));
+    cache.close();
+    assertTrue(path.length() <= 4096);
+  }
+
+  @Test
+  public void corruptCountIsMissOnReopen() throws IOException {
+    int[] lineCounts = new int[]{-1, 1000, 0x40000000};
+    for (int lineCount : lineCounts) {
+      File path = tempFile();
+      LayoutCache cache = new LayoutCache(path, FONT);
+      cache.put(1L, entry(3, 2));
+      cache.close();
+      writeInt(path, LayoutCache.HEADER_SIZE + LayoutCache.RECORD_HEADER_SIZE, lineCount);
+
+      // Dropped, and the cache is usable again
+      cache = new LayoutCache(path, FONT);
+      LayoutCache.Entry entry = new LayoutCache.Entry();
+      assertFalse(cache.get(1L, entry));
+      cache.put(2L, entry(1, 1));
+      assertTrue(cache.get(2L, entry));
+      assertEntry(entry(1, 1), entry);
+      cache.close();
+    }
+  }
+
+  @Test
+  public void corruptCountIsMissWhileOpen() throws IOException {
+    File path = tempFile();
+    LayoutCache cache = new LayoutCache(path, FONT);
+    cache.put(1L, entry(3, 2));
+    cache.put(2L, entry(2, 2));
+
+    // Reading count of the first lines, through the mapped file
+    int readings = LayoutCache.HEADER_SIZE + LayoutCache.RECORD_HEADER_SIZE
+        + (int) LayoutCache.linesSize(3);
+    writeInt(path, readings + LayoutCache.RECORD_HEADER_SIZE, 1000);
+    LayoutCache.Entry entry = new LayoutCache.Entry();
+    assertTrue(cache.get(1L, entry));
+    assertEquals(-1, entry.readingCount);
+
+    // Line count of the first lines
+    writeInt(path, LayoutCache.HEADER_SIZE + LayoutCache.RECORD_HEADER_SIZE, 1000);
+    assertFalse(cache.get(1L, entry));
+    assertTrue(cache.get(2L, entry));
+    assertEntry(entry(2, 2), entry);
+    cache.close();
+  }
+
+  private static LayoutCache.Entry entry(int lines, int readings) {
+    LayoutCache.Entry entry = new LayoutCache.Entry();
+    entry.ensureCapacity(lines, readings);
+    entry.lineCount = lines;
+    entry.lineMax = 100.0f + lines;
+    entry.ellipsisX = readings > 0 ? -1.0f : 50.0f;
+    for (int i = 0; i < 2 * (lines + 1); i++) {
+      entry.lineBreaks[i] = i / 2;
+    }
+    entry.readingCount = readings;
+    for (int i = 0; i < readings; i++) {
+      entry.readingOffsets[i] = 10.0f * i + 5.0f;
+    }
+    return entry;
+  }
+
+  private static void assertEntry(LayoutCache.Entry expected, LayoutCache.Entry actual) {
+    assertEquals(expected.lineCount, actual.lineCount);
+    assertEquals(expected.lineMax, actual.lineMax, 0.0f);
+    assertEquals(expected.ellipsisX, actual.ellipsisX, 0.0f);
+    for (int i = 0; i < 2 * (expected.lineCount + 1); i++) {
+      assertEquals(expected.lineBreaks[i], actual.lineBreaks[i]);
+    }
+    assertEquals(expected.readingCount, actual.readingCount);
+    for (int i = 0; i < expected.readingCount; i++) {
+      assertEquals(expected.readingOffsets[i], actual.readingOffsets[i], 0.0f);
+    }
+  }
+
+  private static File tempFile() throws IOException {
+    File path = File.createTempFile("layout", ".cache");
+    path.deleteOnExit();
+    return path;
+  }
+
+  private static void writeInt(File path, int position, int value) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "rw");
+    try {
+      file.seek(position);
+      file.writeInt(value);
+    } finally {
+      file.close();
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+// Line ends with and without kinsoku, line limits and ellipsis, every character 10 wide
+public class LineBreakerTest {
+
+  private static final float WIDTH = 10.0f;
+
+  // Measurer counting the characters it measured
+  private static class CountingMeasurer implements Measurer {
+
+    int measured = 0;
+
+    @Override
+    public void getTextWidths(char[] chars, int start, int count, float[] widths,
+        int widthsStart) {
+      measured += count;
+      for (int i = 0; i < count; i++) {
+        widths[widthsStart + i] = WIDTH;
+      }
+    }
+
+    @Override
+    public float measureText(char[] chars, int start, int count) {
+      measured += count;
+      return count * WIDTH;
+    }
+  }
+
+  @Test
+  public void openingBracketMovesToNextLine() {
+    assertArrayEquals(new String[]{"あいうえ「", "おかき"},
+        lines("あいうえ「おかき", 5, LineBreakRules.NONE));
+    assertArrayEquals(new String[]{"あいうえ", "「おかき"},
+        lines("あいうえ「おかき", 5, LineBreakRules.JAPANESE));
+  }
+
+  @Test
+  public void punctuationTakesPreviousCharacter() {
+    assertArrayEquals(new String[]{"あいうえお", "。かき"},
+        lines("あいうえお。かき", 5, LineBreakRules.NONE));
+    assertArrayEquals(new String[]{"あいうえ", "お。かき"},
+        lines("あいうえお。かき", 5, LineBreakRules.JAPANESE));
+  }
+
+  @Test
+  public void walkBackCrossesSpans() {
+    assertArrayEquals(new String[]{"あいうえ", "漢。お"},
+        lines("あいうえ{漢;かん}。お", 5, LineBreakRules.JAPANESE));
+    assertArrayEquals(new String[]{"あいうえ", "「漢字」"},
+        lines("あいうえ「{漢字;かんじ}」", 5, LineBreakRules.JAPANESE));
+  }
+
+  @Test
+  public void spansWithReadingsAreNeverSplit() {
+    assertArrayEquals(new String[]{"あいう", "漢字仮名。"},
+        lines("あいう{漢字仮名;かんじかな}。", 5, LineBreakRules.JAPANESE));
+    assertArrayEquals(new String[]{"漢字仮名", "。"},
+        lines("{漢字仮名;かんじかな}。", 3, LineBreakRules.JAPANESE));
+  }
+
+  @Test
+  public void noLegalBreakKeepsForcedBreak() {
+    assertArrayEquals(new String[]{"。。。", "。。。", "。"},
+        lines("。。。。。。。", 3, LineBreakRules.JAPANESE));
+    assertArrayEquals(new String[]{"「「「", "「あ"},
+        lines("「「「「あ", 3, LineBreakRules.JAPANESE));
+  }
+
+  @Test
+  public void maxLinesStopsBreaking() {
+    Markup markup = markup("あいうえおかきくけこさし");
+    LineBreaker breaker = breaker(markup, 5, 2, false, new CountingMeasurer());
+    assertArrayEquals(new String[]{"あいうえお", "かきくけこ"}, lines(markup, breaker));
+    assertFalse(breaker.complete());
+    assertEquals(-1.0f, breaker.ellipsisX, 0.0f);
+    assertEquals(50.0f, breaker.lineMax, 0.0f);
+  }
+
+  @Test
+  public void ellipsisTakesRoomOnLastLine() {
+    Markup markup = markup("あいうえおかきくけこさし");
+    LineBreaker breaker = breaker(markup, 5, 2, true, new CountingMeasurer());
+    assertArrayEquals(new String[]{"あいうえお", "かきくけ"}, lines(markup, breaker));
+    assertFalse(breaker.complete());
+    assertEquals(40.0f, breaker.ellipsisX, 0.0f);
+    assertEquals(50.0f, breaker.lineMax, 0.0f);
+  }
+
+  @Test
+  public void noEllipsisWhenRestFits() {
+    Markup markup = markup("あいうえおかきくけこ");
+    LineBreaker breaker = breaker(markup, 5, 2, true, new CountingMeasurer());
+    assertArrayEquals(new String[]{"あいうえお", "かきくけこ"}, lines(markup, breaker));
+    assertTrue(breaker.complete());
+    assertEquals(-1.0f, breaker.ellipsisX, 0.0f);
+  }
+
+  @Test
+  public void previewMeasuresOnlyTextItReaches() {
+    // One long span without readings, and many short spans with readings
+    StringBuilder plain = new StringBuilder();
+    StringBuilder spans = new StringBuilder();
+    for (int i = 0; i < 50000; i++) {
+      plain.append("あいうえおかきくけこ");
+      spans.append("{漢;かん}あ");
+    }
+    String[] texts = new String[]{plain.toString(), spans.toString()};
+    for (String text : texts) {
+      for (int ellipsize = 0; ellipsize < 2; ellipsize++) {
+        CountingMeasurer measurer = new CountingMeasurer();
+        LineBreaker breaker = breaker(markup(text), 5, 2, ellipsize == 1, measurer);
+        assertEquals(2, breaker.lineCount());
+        assertTrue(measurer.measured <= 2 * 64);
+      }
+    }
+  }
+
+  // Text of every line of markup broken at the given number of characters per line
+  private static String[] lines(String text, int characters, LineBreakRules rules) {
+    Markup markup = markup(text);
+    LineBreaker breaker = new LineBreaker();
+    breaker.setMarkup(markup, new CountingMeasurer());
+    breaker.rules = rules;
+    breaker.breakLines(characters * WIDTH, 0.0f);
+    return lines(markup, breaker);
+  }
+
+  // Breaker over markup with a line limit, the ellipsis one character wide
+  private static LineBreaker breaker(Markup markup, int characters, int maxLines,
+      boolean ellipsize, Measurer measurer) {
+    LineBreaker breaker = new LineBreaker();
+    breaker.setMarkup(markup, measurer);
+    breaker.maxLines = maxLines;
+    breaker.ellipsize = ellipsize;
+    breaker.breakLines(characters * WIDTH, WIDTH);
+    return breaker;
+  }
+
+  private static Markup markup(String text) {
+    Markup markup = new Markup();
+    markup.parse(text);
+    return markup;
+  }
+
+  private static String[] lines(Markup markup, LineBreaker breaker) {
+    List<String> lines = new ArrayList<>();
+    for (int k = 0; k < breaker.lineCount(); k++) {
+      int start = position(markup, breaker.breaks[2 * k], breaker.breaks[2 * k + 1]);
+      int end = position(markup, breaker.breaks[2 * k + 2], breaker.breaks[2 * k + 3]);
+      lines.add(new String(markup.normalChars, start, end - start));
+    }
+    return lines.toArray(new String[0]);
+  }
+
+  private static int position(Markup markup, int span, int offset) {
+    return span == markup.spanCount() ? markup.normalLength : markup.normalStart(span) + offset;
+  }
+}
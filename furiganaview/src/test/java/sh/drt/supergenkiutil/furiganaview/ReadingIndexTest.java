@@ -0,0 +1,69 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+// Search over base text and readings, with katakana folded to hiragana
+public class ReadingIndexTest {
+
+  @Test
+  public void baseText() {
+    ReadingIndex index = index("{東京;とうきょう}と東京");
+    assertArrayEquals(new int[]{0, 2, 3, 5}, index.search("東京"));
+    assertArrayEquals(new int[]{2, 4}, index.search("と東"));
+  }
+
+  @Test
+  public void readingMapsToBaseText() {
+    ReadingIndex index = index("{東京;とうきょう}と東京");
+    assertArrayEquals(new int[]{0, 2}, index.search("とうきょう"));
+    assertArrayEquals(new int[]{0, 2}, index.search("きょ"));
+    assertArrayEquals(new int[]{0, 2, 2, 3}, index.search("と"));
+  }
+
+  @Test
+  public void readingAcrossSpans() {
+    ReadingIndex index = index("{東;ひがし}{京;きょう}に");
+    assertArrayEquals(new int[]{0, 2}, index.search("しきょ"));
+    assertArrayEquals(new int[]{1, 3}, index.search("きょうに"));
+  }
+
+  @Test
+  public void katakanaAndHiraganaMatchAlike() {
+    ReadingIndex index = index("{東京;とうきょう}のコーヒー");
+    assertArrayEquals(new int[]{0, 2}, index.search("トウキョウ"));
+    assertArrayEquals(new int[]{3, 7}, index.search("こーひー"));
+    assertArrayEquals(new int[]{3, 7}, index.search("コーヒー"));
+  }
+
+  @Test
+  public void sameRangeOnce() {
+    ReadingIndex index = index("{あ;あ}い");
+    assertArrayEquals(new int[]{0, 1}, index.search("あ"));
+    assertArrayEquals(new int[]{0, 2}, index.search("あい"));
+  }
+
+  @Test
+  public void noMatch() {
+    ReadingIndex index = index("{東京;とうきょう}");
+    assertArrayEquals(new int[0], index.search(""));
+    assertArrayEquals(new int[0], index.search("大阪"));
+    assertArrayEquals(new int[0], index.search("京と"));
+    assertArrayEquals(new int[0], index.search("\0"));
+  }
+
+  // Index of markup, built like the view does
+  private static ReadingIndex index(String text) {
+    Markup markup = new Markup();
+    markup.parse(text);
+    ReadingIndex index = new ReadingIndex();
+    index.reset(markup.normalChars, markup.normalLength);
+    for (int i = 0; i < markup.spanCount(); i++) {
+      index.addSpan(markup.normalChars, markup.normalStart(i), markup.normalEnd(i),
+          markup.furiganaChars, markup.furiganaStart(i), markup.furiganaEnd(i));
+    }
+    index.build();
+    return index;
+  }
+}
@@ -0,0 +1,70 @@
+package sh.drt.supergenkiutil.furiganaview;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+// Overlap fallback and resumed optimization of reading placement
+public class ReadingPlacerTest {
+
+  private static final float DELTA = 0.01f;
+
+  @Test
+  public void approximatePullsBackFromLineEnd() {
+    float[] offsets = new float[3];
+    ReadingPlacer.approximate(new float[]{220, 230, 240}, new float[]{30, 30, 30}, 3, 240,
+        offsets);
+    assertArrayEquals(new float[]{165, 195, 225}, offsets, DELTA);
+  }
+
+  @Test
+  public void approximateStaysInsideLineWhenPacked() {
+    // Exactly as wide as the line
+    float[] offsets = new float[4];
+    ReadingPlacer.approximate(new float[]{0, 0, 240, 240}, new float[]{60, 60, 60, 60}, 4, 240,
+        offsets);
+    assertArrayEquals(new float[]{30, 90, 150, 210}, offsets, DELTA);
+  }
+
+  @Test
+  public void approximateKeepsOrderWhenWiderThanLine() {
+    // 12 readings 30 wide over 20 wide base characters on a 240 wide line
+    int n = 12;
+    float[] centers = new float[n];
+    float[] widths = new float[n];
+    for (int i = 0; i < n; i++) {
+      centers[i] = 20 * i + 10;
+      widths[i] = 30;
+    }
+    float[] offsets = new float[n];
+    ReadingPlacer.approximate(centers, widths, n, 240, offsets);
+    assertTrue(offsets[0] - 15 >= 0);
+    for (int i = 1; i < n; i++) {
+      assertTrue(offsets[i] - 15 >= offsets[i - 1] + 15 - DELTA);
+    }
+  }
+
+  @Test
+  public void resumedPlacementMatchesUnlimited() {
+    int n = 6;
+    float[] centers = new float[]{10, 30, 50, 70, 150, 230};
+    float[] widths = new float[]{40, 40, 40, 20, 60, 40};
+    ReadingPlacer placer = new ReadingPlacer();
+    float[] expected = new float[n];
+    placer.place(centers, widths, n, 240, new float[n], 0, false, 0L, expected);
+
+    // Deadline already passed, one iteration per call
+    float[] x = new float[n];
+    float[] offsets = new float[n];
+    int iteration = 0;
+    int calls = 0;
+    while (iteration < placer.iterations()) {
+      iteration = placer.place(centers, widths, n, 240, x, iteration, true, System.nanoTime(),
+          offsets);
+      calls++;
+    }
+    assertTrue(calls > 1);
+    assertArrayEquals(expected, offsets, DELTA);
+  }
+}